@@ -0,0 +1,224 @@
+import benchmark.BenchmarkRunner;
+import benchmark.ClusterSizeMetrics;
+import benchmark.Metrics;
+import core.QueryResult;
+import core.Vector;
+import core.VectorIndex;
+import dataset.DatasetLoader;
+import benchmark.BenchmarkExecutors;
+import core.Metric;
+import index.hnsw.JVectorHNSWIndex;
+import index.ivf.FlatCoarseQuantizer;
+import index.ivf.HnswCoarseQuantizer;
+import index.ivf.IVFIndex;
+import index.ivf.IVFPQIndex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+// plain IVF against the SQ8 and IVF-PQ storage tiers on SIFT, with and without exact re-ranking
+public class IVFMain {
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        int k = 10;
+        List<Vector> indexVectors = DatasetLoader.loadFVectors("/Users/kartikeysrivastava/Desktop/projects/dataset/siftsmall-10k/siftsmall_base.fvecs");
+        List<Vector> queryVectors = DatasetLoader.loadFVectors("/Users/kartikeysrivastava/Desktop/projects/dataset/siftsmall-10k/siftsmall_query.fvecs");
+        List<int []> groundTruth = DatasetLoader.loadIVecs("/Users/kartikeysrivastava/Desktop/projects/dataset/siftsmall-10k/siftsmall_groundtruth.ivecs");
+
+        int nList = 50;
+        int nProbe = 5;
+        List<VectorIndex> indexes = List.of(
+                new IVFIndex(nList, nProbe),
+                new IVFIndex(nList, nProbe).withScalarQuantization(0),
+                new IVFIndex(nList, nProbe).withScalarQuantization(4),
+                new IVFPQIndex(nList, nProbe, 16, 0),
+                new IVFPQIndex(nList, nProbe, 32, 0),
+                new IVFPQIndex(nList, nProbe, 64, 0),
+                new IVFPQIndex(nList, nProbe, 16, 10),
+                new IVFPQIndex(nList, nProbe, 32, 10)
+        );
+
+        List<Metrics> allMetrics = new ArrayList<>();
+        List<Double> allRecalls = new ArrayList<>();
+        for (VectorIndex index : indexes) {
+            try (index) {
+                System.out.println("\n=== " + index.getName() + " ===");
+                allMetrics.add(BenchmarkRunner.run(index, indexVectors, queryVectors, k));
+                allRecalls.add(averageRecall(index, queryVectors, groundTruth, k));
+            }
+        }
+
+        System.out.println("\n=== IVF vs IVF SQ8 vs IVF-PQ ===");
+        System.out.printf("%-24s %10s %12s %12s %10s %10s%n", "Index", "Build(ms)", "Bytes/vec", "P50(μs)", "QPS", "Recall@" + k);
+        for (int i = 0; i < indexes.size(); i++) {
+            Metrics m = allMetrics.get(i);
+            System.out.printf("%-24s %10d %12.1f %12.2f %10.0f %10.4f%n",
+                    indexes.get(i).getName(), m.getBuildTimeMs(), m.getBytesPerVector(),
+                    m.getQueryLatencyP50Micros(), m.getThroughputQPS(), allRecalls.get(i));
+        }
+
+        benchmarkTrainingSample(indexVectors, queryVectors, groundTruth, k, nList, nProbe);
+        benchmarkClusterBalance(indexVectors, queryVectors, groundTruth, k, nList, nProbe);
+        benchmarkSpilling(indexVectors, queryVectors, groundTruth, k, nList);
+        benchmarkCoarseQuantizer(indexVectors, queryVectors, groundTruth, k);
+        benchmarkParallelProbe(indexVectors, queryVectors, k, nList);
+        benchmarkConcurrentSearch(indexVectors, queryVectors, k, nList);
+    }
+
+    // centroid quality and recall when k-means only sees a sample of the data
+    private static void benchmarkTrainingSample(List<Vector> indexVectors, List<Vector> queryVectors, List<int[]> groundTruth,
+                                                int k, int nList, int nProbe) {
+        List<String> rows = new ArrayList<>();
+        for (int pointsPerList : new int[]{10, 20, 50, 100, 0}) {
+            int sampleSize = pointsPerList * nList;
+            IVFIndex index = new IVFIndex(nList, nProbe).withTrainingSample(sampleSize);
+            long start = System.currentTimeMillis();
+            index.build(indexVectors);
+            long buildMs = System.currentTimeMillis() - start;
+            double recall = averageRecall(index, queryVectors, groundTruth, k);
+            rows.add(String.format("%-12s %10d %14.2f %10.4f",
+                    sampleSize == 0 ? "all" : String.valueOf(sampleSize), buildMs, index.getQuantizationError(), recall));
+        }
+        System.out.println("\n=== K-means training sample size ===");
+        System.out.printf("%-12s %10s %14s %10s%n", "Sample", "Build(ms)", "Quant. error", "Recall@" + k);
+        rows.forEach(System.out::println);
+    }
+
+    // list length distribution and tail latency with and without a cap on the list size
+    private static void benchmarkClusterBalance(List<Vector> indexVectors, List<Vector> queryVectors, List<int[]> groundTruth,
+                                                int k, int nList, int nProbe) {
+        List<String> rows = new ArrayList<>();
+        for (double factor : new double[]{0, 2.0, 1.5, 1.2}) {
+            IVFIndex index = new IVFIndex(nList, nProbe);
+            if (factor > 0) {
+                index.withBalancedClusters(factor);
+            }
+            index.build(indexVectors);
+            ClusterSizeMetrics sizes = index.getClusterSizeMetrics();
+            Metrics metrics = BenchmarkRunner.measureSearchOnly(index, queryVectors, k);
+            double recall = averageRecall(index, queryVectors, groundTruth, k);
+            rows.add(String.format("%-8s %6d %6d %6d %6d %10.3f %10.2f %10.2f %10.4f",
+                    factor == 0 ? "none" : factor + "x", sizes.getEmptyClusters(), sizes.getP50Size(), sizes.getP99Size(),
+                    sizes.getMaxSize(), sizes.getImbalanceFactor(), metrics.getQueryLatencyP50Micros(),
+                    metrics.getQueryLatencyP99Micros(), recall));
+        }
+        System.out.println("\n=== Cluster balance (nList=" + nList + ", nProbe=" + nProbe + ") ===");
+        System.out.printf("%-8s %6s %6s %6s %6s %10s %10s %10s %10s%n",
+                "Cap", "Empty", "P50", "P99", "Max", "Imbalance", "P50(μs)", "P99(μs)", "Recall@" + k);
+        rows.forEach(System.out::println);
+    }
+
+    // recall vs nProbe with each vector stored in up to r lists, and the nProbe each setting needs for 0.95
+    private static void benchmarkSpilling(List<Vector> indexVectors, List<Vector> queryVectors, List<int[]> groundTruth,
+                                          int k, int nList) {
+        int[] nProbes = {1, 2, 3, 5, 8, 13};
+        double[][] settings = {{1, 1.0}, {2, 1.1}, {2, 1.3}, {3, 1.3}};
+        System.out.println("\n=== Spilled assignment: recall vs nProbe (nList=" + nList + ") ===");
+        System.out.printf("%-16s %8s %8s %12s %10s %10s%n", "Spill", "Copies", "nProbe", "Distances/q", "P50(μs)", "Recall@" + k);
+        for (double[] setting : settings) {
+            int maxAssignments = (int) setting[0];
+            String label = maxAssignments == 1 ? "none" : "r=" + maxAssignments + " ratio=" + setting[1];
+            int reached = -1;
+            for (int nProbe : nProbes) {
+                IVFIndex index = new IVFIndex(nList, nProbe).withSpilling(maxAssignments, setting[1]);
+                index.build(indexVectors);
+                long copies = 0;
+                for (int size : index.getClusterSizes()) {
+                    copies += size;
+                }
+                Metrics metrics = BenchmarkRunner.measureSearchOnly(index, queryVectors, k);
+                double recall = averageRecall(index, queryVectors, groundTruth, k);
+                if (reached < 0 && recall >= 0.95) {
+                    reached = nProbe;
+                }
+                System.out.printf("%-16s %8.2f %8d %12.0f %10.2f %10.4f%n", label, (double) copies / index.size(), nProbe,
+                        metrics.getAvgDistanceCalculations(), metrics.getQueryLatencyP50Micros(), recall);
+            }
+            System.out.println(label + ": " + (reached < 0 ? "0.95 recall not reached" : "0.95 recall at nProbe " + reached));
+        }
+    }
+
+    // exact vs graph coarse search as nList grows, nProbe kept at a tenth of the lists
+    private static void benchmarkCoarseQuantizer(List<Vector> indexVectors, List<Vector> queryVectors, List<int[]> groundTruth, int k) {
+        List<String> rows = new ArrayList<>();
+        for (int lists : new int[]{50, 250, 1000}) {
+            for (boolean graph : new boolean[]{false, true}) {
+                IVFIndex index = new IVFIndex(lists, Math.max(1, lists / 10))
+                        .withCoarseQuantizer(graph ? new HnswCoarseQuantizer() : new FlatCoarseQuantizer());
+                index.build(indexVectors);
+                Metrics metrics = BenchmarkRunner.measureSearchOnly(index, queryVectors, k);
+                index.resetDistanceCalculations();
+                double recall = averageRecall(index, queryVectors, groundTruth, k);
+                rows.add(String.format("%-8d %-8s %12.2f %14.0f %10.4f", lists, graph ? "hnsw" : "flat",
+                        metrics.getQueryLatencyP50Micros(), (double) index.getDistanceCalculations() / queryVectors.size(), recall));
+            }
+        }
+        System.out.println("\n=== Coarse quantizer ===");
+        System.out.printf("%-8s %-8s %12s %14s %10s%n", "nList", "Coarse", "P50(μs)", "Distances/q", "Recall@" + k);
+        rows.forEach(System.out::println);
+    }
+
+    // serial vs intra-query parallel IVF as nProbe grows
+    private static void benchmarkParallelProbe(List<Vector> indexVectors, List<Vector> queryVectors, int k, int nList) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.println("\n=== Parallel multi-probe (" + threads + " threads) ===");
+        System.out.printf("%-8s %16s %16s %10s%n", "nProbe", "Serial P50(μs)", "Parallel P50(μs)", "Speedup");
+        for (int nProbe : new int[]{5, 10, 25, nList}) {
+            try (IVFIndex serial = new IVFIndex(nList, nProbe, Metric.L2);
+                 IVFIndex parallel = new IVFIndex(nList, nProbe, Metric.L2, threads)) {
+                serial.build(indexVectors);
+                parallel.build(indexVectors);
+                Metrics serialMetrics = BenchmarkRunner.measureSearchOnly(serial, queryVectors, k);
+                Metrics parallelMetrics = BenchmarkRunner.measureSearchOnly(parallel, queryVectors, k);
+                System.out.printf("%-8d %16.2f %16.2f %9.2fx%n", nProbe,
+                        serialMetrics.getQueryLatencyP50Micros(), parallelMetrics.getQueryLatencyP50Micros(),
+                        serialMetrics.getQueryLatencyP50Micros() / parallelMetrics.getQueryLatencyP50Micros());
+            }
+        }
+    }
+
+    // IVF and JVector both answering searchAsync on the same executor
+    private static void benchmarkConcurrentSearch(List<Vector> indexVectors, List<Vector> queryVectors, int k, int nList) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = BenchmarkExecutors.createCustomExecutor(threads);
+        try {
+            List<VectorIndex> indexes = List.of(
+                    new IVFIndex(nList, 10, Metric.L2, 1, executor),
+                    new JVectorHNSWIndex(16, 100, 100, executor)
+            );
+            System.out.println("\n=== Concurrent searchAsync (" + threads + " threads) ===");
+            for (VectorIndex index : indexes) {
+                try (index) {
+                    index.build(indexVectors);
+                    // one untimed pass to warm up
+                    runAsync(index, queryVectors, k);
+                    long start = System.nanoTime();
+                    runAsync(index, queryVectors, k);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("%-24s %10.0f QPS%n", index.getName(), queryVectors.size() / seconds);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void runAsync(VectorIndex index, List<Vector> queryVectors, int k) {
+        List<CompletableFuture<List<QueryResult>>> futures = queryVectors.stream()
+                .map(v -> index.searchAsync(v.vector(), k))
+                .toList();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    private static double averageRecall(VectorIndex index, List<Vector> queryVectors, List<int[]> groundTruth, int k) {
+        double total = 0;
+        for (int i = 0; i < queryVectors.size(); i++) {
+            List<QueryResult> results = index.search(queryVectors.get(i).vector(), k);
+            total += BenchmarkRunner.calculateRecall(results, groundTruth.get(i), k);
+        }
+        return total / queryVectors.size();
+    }
+}
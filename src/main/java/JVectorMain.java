@@ -0,0 +1,422 @@
+import benchmark.BenchmarkRunner;
+import benchmark.CompactionMetrics;
+import benchmark.Metrics;
+import core.QueryResult;
+import core.Vector;
+import core.VectorIndex;
+import dataset.DatasetLoader;
+import index.flat.FlatIndex;
+import index.hnsw.CompactionPolicy;
+import index.hnsw.JVectorHNSWIndex;
+import index.hnsw.JelmarkHNSWIndex;
+import index.ivf.IVFIndex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// JVector HNSW on SIFT: exact traversal against PQ-compressed traversal with and without exact re-ranking
+public class JVectorMain {
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        int k = 10;
+        List<Vector> indexVectors = DatasetLoader.loadFVectors("/Users/kartikeysrivastava/Desktop/projects/dataset/siftsmall-10k/siftsmall_base.fvecs");
+        List<Vector> queryVectors = DatasetLoader.loadFVectors("/Users/kartikeysrivastava/Desktop/projects/dataset/siftsmall-10k/siftsmall_query.fvecs");
+        List<int []> groundTruth = DatasetLoader.loadIVecs("/Users/kartikeysrivastava/Desktop/projects/dataset/siftsmall-10k/siftsmall_groundtruth.ivecs");
+
+        int m = 16;
+        int efConstruction = 100;
+        int efSearch = 50;
+        List<JVectorHNSWIndex> indexes = List.of(
+                new JVectorHNSWIndex(m, efConstruction, efSearch),
+                new JVectorHNSWIndex(m, efConstruction, efSearch).withProductQuantization(32, 0),
+                new JVectorHNSWIndex(m, efConstruction, efSearch).withProductQuantization(32, 5),
+                new JVectorHNSWIndex(m, efConstruction, efSearch).withProductQuantization(64, 0),
+                new JVectorHNSWIndex(m, efConstruction, efSearch).withProductQuantization(64, 5)
+        );
+
+        List<Metrics> allMetrics = new ArrayList<>();
+        List<Double> allRecalls = new ArrayList<>();
+        List<Double> allVisited = new ArrayList<>();
+        List<Integer> allHopBytes = new ArrayList<>();
+        // every index is closed once measured, so at most one graph is alive at a time
+        for (JVectorHNSWIndex index : indexes) {
+            try (index) {
+                System.out.println("\n=== " + index.getName() + " ===");
+                allMetrics.add(BenchmarkRunner.run(index, indexVectors, queryVectors, k));
+                // exactly one pass over the queries between reset and read
+                index.resetDistanceCalculations();
+                allRecalls.add(averageRecall(index, queryVectors, groundTruth, k));
+                allVisited.add(index.getVisitedNodes() / (double) queryVectors.size());
+                allHopBytes.add(index.getCompressedBytesPerVector());
+            }
+        }
+
+        System.out.println("\n=== JVector exact vs PQ traversal ===");
+        System.out.printf("%-32s %10s %14s %14s %12s %10s %12s %14s %10s%n", "Index", "Build(ms)", "Heap bytes/vec", "Hop bytes/vec",
+                "P50(μs)", "QPS", "Dist/query", "Visited/query", "Recall@" + k);
+        for (int i = 0; i < indexes.size(); i++) {
+            Metrics metrics = allMetrics.get(i);
+            System.out.printf("%-32s %10d %14.1f %14d %12.2f %10.0f %12.1f %14.1f %10.4f%n",
+                    indexes.get(i).getName(), metrics.getBuildTimeMs(), metrics.getBytesPerVector(), allHopBytes.get(i),
+                    metrics.getQueryLatencyP50Micros(), metrics.getThroughputQPS(), metrics.getAvgDistanceCalculations(),
+                    allVisited.get(i), allRecalls.get(i));
+        }
+
+        benchmarkWorkPerQuery(indexVectors, queryVectors, groundTruth, k, m, efConstruction, efSearch);
+
+        benchmarkSearchAllocations(indexVectors, queryVectors, k, m, efConstruction, efSearch);
+        benchmarkPersistence(indexVectors, queryVectors, groundTruth, k, m, efConstruction, efSearch);
+        benchmarkConcurrentReadWrite(indexVectors, queryVectors, k, m, efConstruction, efSearch);
+        benchmarkChurnCompaction(indexVectors, m, efConstruction, efSearch);
+        benchmarkChurnSoak(indexVectors.subList(0, 2000), 1_000_000, m, efConstruction, efSearch);
+    }
+
+    // distance computations per query (one pass over the queries after a reset) against recall,
+    // for every index type on the same data
+    private static void benchmarkWorkPerQuery(List<Vector> indexVectors, List<Vector> queryVectors, List<int[]> groundTruth,
+                                              int k, int m, int efConstruction, int efSearch) {
+        List<VectorIndex> indexes = List.of(
+                new FlatIndex(),
+                new IVFIndex(100, 10),
+                new JelmarkHNSWIndex(m, efConstruction, efSearch),
+                new JVectorHNSWIndex(m, efConstruction, efSearch)
+        );
+        List<String> rows = new ArrayList<>();
+        for (VectorIndex index : indexes) {
+            try (index) {
+                index.build(indexVectors);
+                index.resetDistanceCalculations();
+                double recall = averageRecall(index, queryVectors, groundTruth, k);
+                rows.add(String.format("%-24s %14.1f %10.4f", index.getName(),
+                        index.getDistanceCalculations() / (double) queryVectors.size(), recall));
+            }
+        }
+        System.out.println("\n=== Work per query ===");
+        System.out.printf("%-24s %14s %10s%n", "Index", "Dist/query", "Recall@" + k);
+        rows.forEach(System.out::println);
+    }
+
+    // long delete/reinsert soak with background compaction: every cycle deletes a vector and inserts it
+    // again under a new id. compaction releases the removed nodes and their ids are reused, so the heap
+    // (measured after a gc) should stay flat after the first compactions instead of growing per cycle
+    private static void benchmarkChurnSoak(List<Vector> vectors, int cycles, int m, int efConstruction, int efSearch)
+            throws IOException {
+        try (JVectorHNSWIndex index = new JVectorHNSWIndex(m, efConstruction, efSearch)
+                .withBackgroundCompaction(new CompactionPolicy(0.1, 100, 1000))) {
+            index.build(vectors);
+            List<String> liveIds = new ArrayList<>();
+            vectors.forEach(v -> liveIds.add(v.id()));
+
+            System.out.println("\n=== Churn soak (" + vectors.size() + " live vectors, " + cycles + " delete + reinsert cycles) ===");
+            System.out.printf("%12s %12s %10s %14s %14s%n", "Cycles", "Heap(MB)", "Size", "Compactions", "Cycles/s");
+            int report = Math.max(1, cycles / 10);
+            long start = System.nanoTime();
+            for (int cycle = 1; cycle <= cycles; cycle++) {
+                int slot = cycle % vectors.size();
+                index.delete(liveIds.get(slot));
+                String id = vectors.get(slot).id() + "#" + cycle;
+                index.insert(new Vector(id, vectors.get(slot).vector()));
+                liveIds.set(slot, id);
+                if (cycle % report == 0) {
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("%12d %12.1f %10d %14d %14.0f%n", cycle, usedHeapBytes() / 1048576.0, index.size(),
+                            index.getCompactionMetrics().getCompactions(), cycle / seconds);
+                }
+            }
+        }
+    }
+
+    // delete-and-reinsert churn on one thread. inline, the delete that crosses 5000 pending deletes runs the
+    // whole compaction itself; in the background the compactor runs at 10% deleted (at most every 200 ms),
+    // and then once more on the idle trigger for what is left after the churn stops
+    private static void benchmarkChurnCompaction(List<Vector> indexVectors, int m, int efConstruction, int efSearch)
+            throws IOException, InterruptedException {
+        int churn = Math.min(8000, indexVectors.size());
+        CompactionPolicy background = new CompactionPolicy(0.1, 200, 1000);
+        List<String> rows = new ArrayList<>();
+        for (CompactionPolicy policy : Arrays.asList(null, background)) {
+            long[] deleteNanos = new long[churn];
+            long[] insertNanos = new long[churn];
+            long duringChurn;
+            CompactionMetrics compaction;
+            try (JVectorHNSWIndex index = new JVectorHNSWIndex(m, efConstruction, efSearch)) {
+                if (policy != null) {
+                    index.withBackgroundCompaction(policy);
+                }
+                index.build(indexVectors);
+                for (int i = 0; i < churn; i++) {
+                    Vector v = indexVectors.get(i);
+                    long start = System.nanoTime();
+                    index.delete(v.id());
+                    deleteNanos[i] = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    index.insert(new Vector(v.id() + "-churn", v.vector()));
+                    insertNanos[i] = System.nanoTime() - start;
+                }
+                duringChurn = index.getCompactionMetrics().getCompactions();
+                if (policy != null) {
+                    Thread.sleep(policy.idleMillis() + 500);
+                }
+                compaction = index.getCompactionMetrics();
+            }
+
+            Arrays.sort(deleteNanos);
+            Arrays.sort(insertNanos);
+            rows.add(String.format("%-12s %12.1f %12.1f %12.1f %12.1f %12.1f %12s %14d %12.1f",
+                    policy == null ? "inline" : "background",
+                    percentileMicros(deleteNanos, 0.5), percentileMicros(deleteNanos, 0.99), deleteNanos[churn - 1] / 1000.0,
+                    percentileMicros(insertNanos, 0.99), insertNanos[churn - 1] / 1000.0,
+                    duringChurn + " / " + compaction.getCompactions(), compaction.getMaxTimeMs(),
+                    compaction.getFreedBytes() / 1048576.0));
+        }
+
+        System.out.println("\n=== Compaction under churn (" + churn + " deletes + reinserts) ===");
+        System.out.printf("%-12s %12s %12s %12s %12s %12s %12s %14s %12s%n", "Compaction", "Del P50(μs)", "Del P99(μs)",
+                "Del max(μs)", "Ins P99(μs)", "Ins max(μs)", "Runs(+idle)", "Max run(ms)", "Freed(MB)");
+        rows.forEach(System.out::println);
+    }
+
+    private static double percentileMicros(long[] sortedNanos, double percentile) {
+        return sortedNanos[Math.min(sortedNanos.length - 1, (int) (sortedNanos.length * percentile))] / 1000.0;
+    }
+
+    // readers search nonstop while one writer inserts the second half of the data and another deletes every
+    // fourth vector of the first half (cleaning up every 250 deletes). "global lock" runs every call under
+    // one lock, the way callers had to serialize the index before it was thread-safe, "concurrent" calls it
+    // directly. afterwards the size must match, no search may return a deleted id and every inserted vector
+    // must find itself
+    private static void benchmarkConcurrentReadWrite(List<Vector> indexVectors, List<Vector> queryVectors,
+                                                     int k, int m, int efConstruction, int efSearch) throws InterruptedException {
+        int readers = Math.max(2, Runtime.getRuntime().availableProcessors());
+        int initial = indexVectors.size() / 2;
+        List<Vector> inserts = indexVectors.subList(initial, indexVectors.size());
+        List<Vector> deletes = new ArrayList<>();
+        for (int i = 0; i < initial; i += 4) {
+            deletes.add(indexVectors.get(i));
+        }
+
+        List<String> rows = new ArrayList<>();
+        for (boolean globalLock : new boolean[]{true, false}) {
+            try (JVectorHNSWIndex index = new JVectorHNSWIndex(m, efConstruction, efSearch)) {
+                index.build(indexVectors.subList(0, initial));
+                Lock lock = globalLock ? new ReentrantLock() : null;
+                AtomicInteger errors = new AtomicInteger();
+                AtomicBoolean writing = new AtomicBoolean(true);
+
+                List<Thread> writers = List.of(
+                        new Thread(() -> {
+                            for (Vector v : inserts) {
+                                run(lock, errors, () -> { index.insert(v); return null; });
+                            }
+                        }),
+                        new Thread(() -> {
+                            for (int i = 0; i < deletes.size(); i++) {
+                                String id = deletes.get(i).id();
+                                run(lock, errors, () -> { index.delete(id); return null; });
+                                if ((i + 1) % 250 == 0) {
+                                    run(lock, errors, index::cleanup);
+                                }
+                            }
+                        }));
+                long[][] latencies = new long[readers][];
+                List<Thread> searchers = new ArrayList<>();
+                for (int r = 0; r < readers; r++) {
+                    int reader = r;
+                    searchers.add(new Thread(() -> {
+                        long[] nanos = new long[1024];
+                        int count = 0;
+                        for (int q = reader; writing.get(); q++) {
+                            float[] query = queryVectors.get(q % queryVectors.size()).vector();
+                            long start = System.nanoTime();
+                            run(lock, errors, () -> index.search(query, k));
+                            if (count == nanos.length) {
+                                nanos = Arrays.copyOf(nanos, count * 2);
+                            }
+                            nanos[count++] = System.nanoTime() - start;
+                        }
+                        latencies[reader] = Arrays.copyOf(nanos, count);
+                    }));
+                }
+
+                long start = System.nanoTime();
+                searchers.forEach(Thread::start);
+                writers.forEach(Thread::start);
+                for (Thread writer : writers) {
+                    writer.join();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                writing.set(false);
+                for (Thread searcher : searchers) {
+                    searcher.join();
+                }
+
+                long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+                Set<String> deleted = new HashSet<>();
+                deletes.forEach(v -> deleted.add(v.id()));
+                boolean consistent = index.size() == initial - deletes.size() + inserts.size();
+                for (Vector v : deletes) {
+                    consistent &= index.search(v.vector(), k).stream().noneMatch(result -> deleted.contains(result.getId()));
+                }
+                int found = 0;
+                for (Vector v : inserts) {
+                    if (index.search(v.vector(), k).stream().anyMatch(result -> result.getId().equals(v.id()))) {
+                        found++;
+                    }
+                }
+                rows.add(String.format("%-14s %12.0f %12.0f %12.2f %12.2f %8d %12s %16.4f",
+                        globalLock ? "global lock" : "concurrent", (inserts.size() + deletes.size()) / seconds, all.length / seconds,
+                        all[all.length / 2] / 1000.0, all[(int) (all.length * 0.99)] / 1000.0, errors.get(),
+                        consistent ? "yes" : "NO", (double) found / inserts.size()));
+            }
+        }
+
+        System.out.println("\n=== Concurrent insert/delete/search (" + readers + " readers, 2 writers) ===");
+        System.out.printf("%-14s %12s %12s %12s %12s %8s %12s %16s%n",
+                "Mode", "Writes/s", "QPS", "P50(μs)", "P99(μs)", "Errors", "Consistent", "Inserts found");
+        rows.forEach(System.out::println);
+    }
+
+    // runs one index call, under the lock if there is one, and counts the calls that throw
+    private static <T> T run(Lock lock, AtomicInteger errors, Supplier<T> call) {
+        if (lock != null) {
+            lock.lock();
+        }
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            errors.incrementAndGet();
+            return null;
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    // garbage per query with a fresh GraphSearcher and query vector per call vs the per-thread pooled ones
+    private static void benchmarkSearchAllocations(List<Vector> indexVectors, List<Vector> queryVectors,
+                                                   int k, int m, int efConstruction, int efSearch) {
+        try (JVectorHNSWIndex index = new JVectorHNSWIndex(m, efConstruction, efSearch)) {
+            index.build(indexVectors);
+            System.out.println("\n=== Search allocations ===");
+            System.out.printf("%-12s %16s %12s %10s%n", "Searchers", "Bytes/query", "P50(μs)", "P99(μs)");
+            for (boolean pooled : new boolean[]{false, true}) {
+                index.withPooledSearchers(pooled);
+                double bytesPerQuery = BenchmarkRunner.measureAllocatedBytesPerQuery(index, queryVectors, k);
+                Metrics metrics = BenchmarkRunner.measureSearchOnly(index, queryVectors, k);
+                System.out.printf("%-12s %16.0f %12.2f %10.2f%n", pooled ? "pooled" : "per query", bytesPerQuery,
+                        metrics.getQueryLatencyP50Micros(), metrics.getQueryLatencyP99Micros());
+            }
+        }
+    }
+
+    // cold start (time to first answered query) and memory of a rebuilt in-heap graph vs the same graph
+    // saved once and memory-mapped back
+    private static void benchmarkPersistence(List<Vector> indexVectors, List<Vector> queryVectors, List<int[]> groundTruth,
+                                             int k, int m, int efConstruction, int efSearch) throws IOException {
+        Path directory = Files.createTempDirectory("jvector-graph");
+        Path graphPath = directory.resolve("sift.graph");
+        try {
+            long heapBefore = usedHeapBytes();
+            long residentBefore = residentBytes();
+            long start = System.nanoTime();
+            double builtFirstQueryMs;
+            long builtHeap;
+            long builtResident;
+            double builtRecall;
+            // closed before the mapped load is measured, so the built graph can be collected
+            try (JVectorHNSWIndex built = new JVectorHNSWIndex(m, efConstruction, efSearch)) {
+                built.build(indexVectors);
+                built.search(queryVectors.get(0).vector(), k);
+                builtFirstQueryMs = (System.nanoTime() - start) / 1e6;
+                builtHeap = usedHeapBytes() - heapBefore;
+                builtResident = residentGrowth(residentBefore);
+                builtRecall = averageRecall(built, queryVectors, groundTruth, k);
+                built.save(graphPath);
+            }
+
+            heapBefore = usedHeapBytes();
+            residentBefore = residentBytes();
+            start = System.nanoTime();
+            double mappedFirstQueryMs;
+            long mappedHeap;
+            double mappedRecall;
+            long mappedResident;
+            Metrics mappedMetrics;
+            try (JVectorHNSWIndex mapped = new JVectorHNSWIndex(m, efConstruction, efSearch)) {
+                mapped.load(graphPath);
+                mapped.search(queryVectors.get(0).vector(), k);
+                mappedFirstQueryMs = (System.nanoTime() - start) / 1e6;
+                mappedHeap = usedHeapBytes() - heapBefore;
+                mappedRecall = averageRecall(mapped, queryVectors, groundTruth, k);
+                // after a full query pass the pages the searches touch are resident
+                mappedResident = residentGrowth(residentBefore);
+                mappedMetrics = BenchmarkRunner.measureSearchOnly(mapped, queryVectors, k);
+            }
+
+            System.out.println("\n=== In-heap build vs memory-mapped load (file: " + Files.size(graphPath) / 1024 + " KB) ===");
+            System.out.printf("%-16s %20s %12s %14s %10s%n", "Index", "First query(ms)", "Heap(MB)", "Resident(MB)", "Recall@" + k);
+            System.out.printf("%-16s %20.1f %12.1f %14s %10.4f%n", "built", builtFirstQueryMs, builtHeap / 1048576.0,
+                    megabytes(builtResident), builtRecall);
+            System.out.printf("%-16s %20.1f %12.1f %14s %10.4f%n", "mapped", mappedFirstQueryMs, mappedHeap / 1048576.0,
+                    megabytes(mappedResident), mappedRecall);
+            System.out.printf("Mapped search P50: %.2f μs, QPS: %.0f%n", mappedMetrics.getQueryLatencyP50Micros(), mappedMetrics.getThroughputQPS());
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static long usedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // resident set size of the whole process (heap plus mapped pages), -1 where /proc isn't available
+    private static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not linux
+        }
+        return -1;
+    }
+
+    private static long residentGrowth(long before) {
+        long now = residentBytes();
+        return before < 0 || now < 0 ? -1 : now - before;
+    }
+
+    private static String megabytes(long bytes) {
+        return bytes < 0 ? "n/a" : String.format("%.1f", bytes / 1048576.0);
+    }
+
+    private static double averageRecall(VectorIndex index, List<Vector> queryVectors, List<int[]> groundTruth, int k) {
+        double total = 0;
+        for (int i = 0; i < queryVectors.size(); i++) {
+            List<QueryResult> results = index.search(queryVectors.get(i).vector(), k);
+            total += BenchmarkRunner.calculateRecall(results, groundTruth.get(i), k);
+        }
+        return total / queryVectors.size();
+    }
+}
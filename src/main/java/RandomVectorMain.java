@@ -1,4 +1,5 @@
 import benchmark.*;
+import core.Metric;
 import core.Vector;
 import core.VectorIndex;
 import dataset.RandomVectorGenerator;
@@ -30,14 +31,16 @@ public class RandomVectorMain {
         List<Vector> queryVectors = generator.generate(queryCount, dimensions);
 
         System.out.println("Creating flat index...");
-        VectorIndex index = new FlatIndex();
+        VectorIndex index = new FlatIndex(Metric.COSINE);
 
         // initial build + query
         System.out.println("===Test 1: Initial Build + Query===");
-        Metrics initialMetrics = BenchmarkRunner.run(index,indexVectors,queryVectors,k,"random");
+        Metrics initialMetrics = BenchmarkRunner.run(index,indexVectors,queryVectors,k);
         System.out.println("Build Time: " + initialMetrics.getBuildTimeMs() + " ms");
         System.out.println("Query Latency P50: " + initialMetrics.getQueryLatencyP50Micros() + " μs");
         System.out.println("Throughput: " + initialMetrics.getThroughputQPS() + " QPS");
+        System.out.printf("Memory: %.1f bytes/vector\n", initialMetrics.getBytesPerVector());
+        System.out.printf("Scan bandwidth: %.2f GB/s\n", initialMetrics.getScanGBps());
         System.out.println("Index Size: " + index.size() + " vectors");
 
         // insert performance
@@ -48,9 +51,10 @@ public class RandomVectorMain {
 
         // search after inserts
         System.out.println("===Test 3: Search Performance after inserts===");
-        Metrics afterInsertMetrics = BenchmarkRunner.measureSearchOnly(index,queryVectors,k,"random");
+        Metrics afterInsertMetrics = BenchmarkRunner.measureSearchOnly(index,queryVectors,k);
         System.out.println("Query Latency P50: " + afterInsertMetrics.getQueryLatencyP50Micros() + " μs");
         System.out.println("QPS: " + afterInsertMetrics.getThroughputQPS());
+        System.out.printf("Scan bandwidth: %.2f GB/s\n", afterInsertMetrics.getScanGBps());
 
         // calculate degradation from inserts
         double insertDegradation = ((afterInsertMetrics.getQueryLatencyP50Micros() - initialMetrics.getQueryLatencyP50Micros())/ initialMetrics.getQueryLatencyP50Micros()) * 100;
@@ -63,7 +67,7 @@ public class RandomVectorMain {
             idsToDelete.add(indexVectors.get(i).id());
         }
 
-        SearchDegradationMetrics degradationMetrics = BenchmarkRunner.benchmarkSearchDegradation(index, queryVectors, k, "random", idsToDelete);
+        SearchDegradationMetrics degradationMetrics = BenchmarkRunner.benchmarkSearchDegradation(index, queryVectors, k, idsToDelete);
         System.out.println("\n" + degradationMetrics);
         System.out.println("Index size after deletes: " + index.size() + " vectors");
 
@@ -78,6 +82,17 @@ public class RandomVectorMain {
         System.out.println("\n" + deleteMetrics);
         System.out.println("Final index size: " + index.size() + " vectors");
 
+        // exact search scaling with scan threads, flat is our ground-truth baseline
+        System.out.println("===Test 6: Parallel Flat Scan Scaling===");
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(cores);
+        BenchmarkRunner.benchmarkParallelScan(indexVectors, queryVectors, k, Metric.COSINE,
+                threadCounts.stream().mapToInt(Integer::intValue).toArray());
+
         System.out.println("\n=== Summary ===");
         System.out.println("Started with: " + indexSize + " vectors");
         System.out.println("Inserted: " + vectorsToInsert + " vectors");
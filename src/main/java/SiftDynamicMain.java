@@ -4,6 +4,7 @@ import core.Vector;
 import core.VectorIndex;
 import dataset.DatasetLoader;
 import index.hnsw.JVectorHNSWIndex;
+import index.ivf.IVFIndex;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -30,7 +31,9 @@ public class SiftDynamicMain {
 
     public static void main(String[] args) throws IOException, InterruptedException {
 
-        System.out.println("=== Dynamic Benchmark: HNSW Index (SIFT Dataset) ===");
+        // pass "ivf" to run the same churn workload against IVF instead of HNSW
+        boolean useIvf = args.length > 0 && args[0].equalsIgnoreCase("ivf");
+        System.out.println("=== Dynamic Benchmark: " + (useIvf ? "IVF" : "HNSW") + " Index (SIFT Dataset) ===");
 
         // =======================
         // Load Dataset
@@ -46,8 +49,8 @@ public class SiftDynamicMain {
         // =======================
         // Create Index
         // =======================
-        System.out.println("Creating HNSW index...");
-        VectorIndex index = new JVectorHNSWIndex(8, 100, 200);
+        VectorIndex index = useIvf ? new IVFIndex(50, 5) : new JVectorHNSWIndex(8, 100, 200);
+        System.out.println("Creating " + index.getName() + "...");
 
         // =======================
         // Test 1: Initial Build + Query
@@ -135,7 +138,7 @@ public class SiftDynamicMain {
 
         SearchDegradationMetrics degradationMetrics =
                 BenchmarkRunner.benchmarkSearchDegradation(
-                        index, queryVectors, K, "sift", moreIdsToDelete
+                        index, queryVectors, K, moreIdsToDelete
                 );
 
         System.out.println("\n" + degradationMetrics);
@@ -179,7 +182,7 @@ public class SiftDynamicMain {
         System.out.println("\n=== Test 1: Initial Build + Query ===");
 
         Metrics metrics =
-                BenchmarkRunner.run(index, indexVectors, queryVectors, k, "sift");
+                BenchmarkRunner.run(index, indexVectors, queryVectors, k);
 
         System.out.println("Build Time: " + metrics.getBuildTimeMs() + " ms");
         System.out.println("Build Memory: " + metrics.getBuildMemoryMB() + " MB");
@@ -196,7 +199,7 @@ public class SiftDynamicMain {
             int k
     ) {
         Metrics metrics =
-                BenchmarkRunner.measureSearchOnly(index, queryVectors, k, "sift");
+                BenchmarkRunner.measureSearchOnly(index, queryVectors, k);
 
         System.out.println("Query latency p50: "
                 + metrics.getQueryLatencyP50Micros() + " microSeconds");
@@ -229,7 +232,7 @@ public class SiftDynamicMain {
         System.out.println("=== Test 4: Search performance after re-insertion ===");
 
         Metrics metrics =
-                BenchmarkRunner.measureSearchOnly(index, queryVectors, k, "sift");
+                BenchmarkRunner.measureSearchOnly(index, queryVectors, k);
 
         System.out.println("Query latency p50: " + metrics.getQueryLatencyP50Micros());
         System.out.println("QPS: " + afterDeleteMetrics.getThroughputQPS());
@@ -260,7 +263,7 @@ public class SiftDynamicMain {
 
         for (int i = 0; i < queryVectors.size(); i++) {
             List<QueryResult> results =
-                    index.search(queryVectors.get(i).vector(), k, "sift");
+                    index.search(queryVectors.get(i).vector(), k);
 
             double recall =
                     BenchmarkRunner.calculateRecall(results, groundTruth.get(i), k);
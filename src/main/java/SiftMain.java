@@ -22,7 +22,7 @@ public class SiftMain {
         System.out.println("Creating " + index.getName() +  " index on a " + indexVectors.size() + " dataset");
 
         System.out.println("Running benchmark using : " + index.getName() + " index" );
-        Metrics metrics = BenchmarkRunner.run(index, indexVectors, queryVectors, k, "sift");
+        Metrics metrics = BenchmarkRunner.run(index, indexVectors, queryVectors, k);
 
         System.out.println("\n=== Benchmark Results ===");
         System.out.println("Build Time: " + metrics.getBuildTimeMs() + " ms");
@@ -35,7 +35,7 @@ public class SiftMain {
 
         List<Double> recalls = new ArrayList<>();
         for (int i = 0; i < queryVectors.size(); i++) {
-            List<QueryResult> results = index.search(queryVectors.get(i).vector(), 10, "sift");
+            List<QueryResult> results = index.search(queryVectors.get(i).vector(), 10);
             double recall = BenchmarkRunner.calculateRecall(results, groundTruthBig.get(i), 10);
             recalls.add(recall);
         }
@@ -166,17 +166,18 @@ public class SyncAsyncBenchmark {
     private static void runWarmup(List<Vector> indexVectors, List<Vector> queryVectors,
                                   List<int[]> groundTruth, BenchmarkConfig config) {
         System.out.println("=== Warmup Phase (" + config + ") ===");
-        VectorIndex warmupIndex = new JVectorHNSWIndex(config.m, config.efConstruction, config.efSearch);
-        warmupIndex.build(indexVectors);
+        try (VectorIndex warmupIndex = new JVectorHNSWIndex(config.m, config.efConstruction, config.efSearch)) {
+            warmupIndex.build(indexVectors);
 
-        double recall = calculateAverageRecall(warmupIndex, queryVectors, groundTruth);
-        System.out.println("Recall@10 on fresh index: " + recall);
+            double recall = calculateAverageRecall(warmupIndex, queryVectors, groundTruth);
+            System.out.println("Recall@10 on fresh index: " + recall);
 
-        for (int i = 0; i < WARMUP_DELETE_COUNT; i++) {
-            warmupIndex.delete(indexVectors.get(i).id());
-        }
-        for (int i = 0; i < WARMUP_DELETE_COUNT; i++) {
-            warmupIndex.insert(indexVectors.get(i));
+            for (int i = 0; i < WARMUP_DELETE_COUNT; i++) {
+                warmupIndex.delete(indexVectors.get(i).id());
+            }
+            for (int i = 0; i < WARMUP_DELETE_COUNT; i++) {
+                warmupIndex.insert(indexVectors.get(i));
+            }
         }
 
         System.out.println("Warmup complete\n");
@@ -244,7 +245,7 @@ public class SyncAsyncBenchmark {
 
         // Sequential search
         long seqStart = System.currentTimeMillis();
-        Metrics seqMetrics = BenchmarkRunner.measureSearchOnly(index, queryVectors, K, "sift");
+        Metrics seqMetrics = BenchmarkRunner.measureSearchOnly(index, queryVectors, K);
         long seqTime = System.currentTimeMillis() - seqStart;
         double seqRecall = calculateAverageRecall(index, queryVectors, groundTruth);
         double seqThroughput = 1000.0 * queryVectors.size() / seqTime;
@@ -255,13 +256,13 @@ public class SyncAsyncBenchmark {
         // Concurrent search
         long concStart = System.currentTimeMillis();
         List<CompletableFuture<List<QueryResult>>> futures = queryVectors.stream()
-                .map(v -> index.searchAsync(v.vector(), K, "sift"))
+                .map(v -> index.searchAsync(v.vector(), K))
                 .toList();
         CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
         long concTime = System.currentTimeMillis() - concStart;
         double concThroughput = 1000.0 * queryVectors.size() / concTime;
 
-        Metrics concMetrics = BenchmarkRunner.measureSearchOnly(index, queryVectors, K, "sift");
+        Metrics concMetrics = BenchmarkRunner.measureSearchOnly(index, queryVectors, K);
         double concRecall = calculateAverageRecall(index, queryVectors, groundTruth);
 
         System.out.println("Concurrent: " + String.format("%.2f qps, %.2f μs, recall=%.4f",
@@ -349,7 +350,7 @@ public class SyncAsyncBenchmark {
     ) {
         List<Double> recalls = new ArrayList<>();
         for (int i = 0; i < queryVectors.size(); i++) {
-            List<QueryResult> results = index.search(queryVectors.get(i).vector(), K, "sift");
+            List<QueryResult> results = index.search(queryVectors.get(i).vector(), K);
             recalls.add(BenchmarkRunner.calculateRecall(results, groundTruth.get(i), K));
         }
         return recalls.stream().mapToDouble(d -> d).average().orElse(0.0);
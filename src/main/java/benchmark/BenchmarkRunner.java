@@ -1,9 +1,14 @@
 package benchmark;
 
+import core.DistanceMetric;
+import core.Metric;
 import core.QueryResult;
 import core.Vector;
 import core.VectorIndex;
+import index.flat.FlatIndex;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.*;
 
 public class BenchmarkRunner {
@@ -12,14 +17,15 @@ public class BenchmarkRunner {
             VectorIndex index,
             List<Vector> indexData,
             List<Vector> queryVectors,
-            int k,
-            String dataset
+            int k
     ) throws InterruptedException {
+        System.out.println("Distance kernels: " + DistanceMetric.kernelName());
 
         // time the build
         long buildStart = System.currentTimeMillis();
         System.gc();
         Thread.sleep(100);
+        long usedBeforeBuild = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
         index.build(indexData);
         System.gc();
         Thread.sleep(100);
@@ -29,23 +35,27 @@ public class BenchmarkRunner {
         // capturing the memory after
         long usedMemory = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
         long buildMemoryMB = usedMemory / (1024*1024);
+        // the dataset is already on the heap before build, so the delta is what the index itself retains
+        double bytesPerVector = index.size() == 0 ? 0 : (double) (usedMemory - usedBeforeBuild) / index.size();
 
         // some warm up to let jvm optimize the code
         for (int i = 0; i < Math.min(100, queryVectors.size()); i ++) {
-            index.search(queryVectors.get(i).vector(), k, dataset);
+            index.search(queryVectors.get(i).vector(), k);
         }
 
         // query latency measurement
         List<Long> latencies = new ArrayList<>();
         index.resetDistanceCalculations();
+        long searchNanos = 0;
 
         for (Vector queryVector : queryVectors) {
             long start = System.nanoTime();
-            index.search(queryVector.vector(),k, dataset);
+            index.search(queryVector.vector(), k);
             long end = System.nanoTime();
 
             long latencyNanos = end - start;
             latencies.add(latencyNanos);
+            searchNanos += latencyNanos;
         }
 
         Collections.sort(latencies);
@@ -56,18 +66,19 @@ public class BenchmarkRunner {
         double p99 = latencies.get((int)(latencies.size()*0.99))/1000.0;
 
         double averageDist = index.getDistanceCalculations() / (double) queryVectors.size();
+        double scanGBps = scanGBps(index, queryVectors, searchNanos);
 
         // throughput measurement
         long throughputStart = System.currentTimeMillis();
         for (Vector queryVector : queryVectors) {
-            index.search(queryVector.vector(), k, dataset);
+            index.search(queryVector.vector(), k);
         }
         long throughputEnd = System.currentTimeMillis();
         double totalSeconds = (throughputEnd - throughputStart) / 1000.0;
         double qps = queryVectors.size()/totalSeconds;
 
         return new Metrics(
-                buildTimeMs,buildMemoryMB,p50,p95,p99,qps,averageDist
+                buildTimeMs,buildMemoryMB,p50,p95,p99,qps,averageDist,bytesPerVector,scanGBps
         );
     }
 
@@ -145,14 +156,13 @@ public class BenchmarkRunner {
             VectorIndex index,
             List<Vector> queryVectors,
             int k,
-            String dataset,
             List<String> idsToDelete
     ) throws InterruptedException {
         System.out.println("===Benchmarking Search Degradation===");
 
         // measure search performance before deletions
         System.out.println("Measuring search performance BEFORE deletions...");
-        Metrics beforeMetrics = measureSearchOnly(index, queryVectors, k, dataset);
+        Metrics beforeMetrics = measureSearchOnly(index, queryVectors, k);
 
         // delete vectors
         System.out.println("Deleting " + idsToDelete.size() + " vectors...");
@@ -164,27 +174,29 @@ public class BenchmarkRunner {
 
         // measure search performance after deletions
         System.out.println("Measuring search performance AFTER deletions...");
-        Metrics afterMetrics = measureSearchOnly(index, queryVectors, k, dataset);
+        Metrics afterMetrics = measureSearchOnly(index, queryVectors, k);
 
         return new SearchDegradationMetrics(
                 beforeMetrics,afterMetrics,idsToDelete.size(),deleteTime
         );
     }
 
-    public static Metrics measureSearchOnly(VectorIndex index, List<Vector> queryVectors, int k, String dataset) {
+    public static Metrics measureSearchOnly(VectorIndex index, List<Vector> queryVectors, int k) {
         for (int i = 0; i < Math.min(10, queryVectors.size()); i++) {
-            index.search(queryVectors.get(i).vector(), k , dataset);
+            index.search(queryVectors.get(i).vector(), k);
         }
 
         // measure latency
         List<Long> latencies = new ArrayList<>();
         index.resetDistanceCalculations();
+        long searchNanos = 0;
 
         for (Vector queryVector : queryVectors) {
             long start = System.nanoTime();
-            index.search(queryVector.vector(), k, dataset);
+            index.search(queryVector.vector(), k);
             long end = System.nanoTime();
             latencies.add(end - start);
+            searchNanos += end - start;
         }
 
         Collections.sort(latencies);
@@ -193,17 +205,84 @@ public class BenchmarkRunner {
         double p99 = latencies.get((int)(latencies.size()  * 0.99)) / 1000.0;
 
         double avgDistance = index.getDistanceCalculations() / (double) queryVectors.size();
+        double scanGBps = scanGBps(index, queryVectors, searchNanos);
 
         // measure throughput
         long throughputStart = System.currentTimeMillis();
         for (Vector queryVector : queryVectors) {
-            index.search(queryVector.vector(), k , dataset);
+            index.search(queryVector.vector(), k);
         }
         long throughputEnd = System.currentTimeMillis();
         double totalSeconds = (throughputEnd - throughputStart) / 1000.0;
         double qps = queryVectors.size() / totalSeconds;
 
-        return new Metrics(0,0,p50,p95,p99,qps,avgDistance);
+        return new Metrics(0,0,p50,p95,p99,qps,avgDistance,0,scanGBps);
+    }
+
+    // every distance calculation reads one full float vector, bytes per nanosecond == GB/s
+    private static double scanGBps(VectorIndex index, List<Vector> queryVectors, long searchNanos) {
+        if (searchNanos == 0 || queryVectors.isEmpty()) {
+            return 0;
+        }
+        long bytesScanned = index.getDistanceCalculations() * queryVectors.get(0).dimensions() * 4L;
+        return (double) bytesScanned / searchNanos;
+    }
+
+    // exact search latency per query as the flat scan is spread over more threads
+    // speedup is relative to the first entry of threadCounts (normally 1)
+    public static List<ScalingMetrics> benchmarkParallelScan(
+            List<Vector> indexData,
+            List<Vector> queryVectors,
+            int k,
+            Metric metric,
+            int[] threadCounts
+    ) {
+        System.out.println("===Benchmarking Parallel Flat Scan===");
+        List<ScalingMetrics> results = new ArrayList<>();
+        double baselineP50 = 0;
+
+        for (int threads : threadCounts) {
+            Metrics metrics;
+            try (FlatIndex index = new FlatIndex(metric, threads)) {
+                index.build(indexData);
+                metrics = measureSearchOnly(index, queryVectors, k);
+            }
+            if (results.isEmpty()) {
+                baselineP50 = metrics.getQueryLatencyP50Micros();
+            }
+            results.add(new ScalingMetrics(
+                    threads,
+                    metrics.getQueryLatencyP50Micros(),
+                    metrics.getQueryLatencyP99Micros(),
+                    metrics.getThroughputQPS(),
+                    baselineP50 / metrics.getQueryLatencyP50Micros()
+            ));
+        }
+
+        System.out.println("Threads |   P50 (μs) |   P99 (μs) |        QPS | Speedup");
+        for (ScalingMetrics result : results) {
+            System.out.println(result);
+        }
+        return results;
+    }
+
+    // heap bytes allocated on the calling thread per search, after a short warm-up so one-off
+    // allocations (lazy init, per-thread pools) aren't counted. -1 if the JVM can't account allocations
+    public static double measureAllocatedBytesPerQuery(VectorIndex index, List<Vector> queryVectors, int k) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean allocations) || !allocations.isThreadAllocatedMemorySupported()) {
+            return -1;
+        }
+        for (int i = 0; i < Math.min(10, queryVectors.size()); i++) {
+            index.search(queryVectors.get(i).vector(), k);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (Vector queryVector : queryVectors) {
+            index.search(queryVector.vector(), k);
+        }
+        long after = allocations.getThreadAllocatedBytes(threadId);
+        return (double) (after - before) / queryVectors.size();
     }
 
     public static double calculateRecall(List<QueryResult> results, int[] groundTruth, int k) {
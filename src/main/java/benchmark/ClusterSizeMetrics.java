@@ -0,0 +1,84 @@
+package benchmark;
+
+import java.util.Arrays;
+
+// distribution of inverted list lengths. a query's scan cost is the sum of the lists it probes,
+// so the tail of this distribution is what shows up in p99 latency
+public class ClusterSizeMetrics {
+    private final int clusters;
+    private final int emptyClusters;
+    private final int minSize;
+    private final int p50Size;
+    private final int p99Size;
+    private final int maxSize;
+    private final double averageSize;
+    private final double imbalanceFactor;
+
+    public ClusterSizeMetrics(int[] sizes) {
+        int[] sorted = sizes.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        double sumOfSquares = 0;
+        int empty = 0;
+        for (int size : sorted) {
+            total += size;
+            sumOfSquares += (double) size * size;
+            if (size == 0) {
+                empty++;
+            }
+        }
+        this.clusters = sorted.length;
+        this.emptyClusters = empty;
+        this.minSize = sorted[0];
+        this.p50Size = sorted[sorted.length / 2];
+        this.p99Size = sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))];
+        this.maxSize = sorted[sorted.length - 1];
+        this.averageSize = (double) total / sorted.length;
+        // expected vectors scanned per probe relative to perfectly even lists, 1.0 is perfectly balanced
+        this.imbalanceFactor = total == 0 ? 1.0 : sumOfSquares * sorted.length / ((double) total * total);
+    }
+
+    public int getClusters() {
+        return clusters;
+    }
+
+    public int getEmptyClusters() {
+        return emptyClusters;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getP50Size() {
+        return p50Size;
+    }
+
+    public int getP99Size() {
+        return p99Size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public double getAverageSize() {
+        return averageSize;
+    }
+
+    public double getImbalanceFactor() {
+        return imbalanceFactor;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                """
+                        Clusters: %d (%d empty)
+                        Size min / p50 / p99 / max: %d / %d / %d / %d
+                        Average size: %.1f
+                        Imbalance factor: %.3f""",
+                clusters, emptyClusters, minSize, p50Size, p99Size, maxSize, averageSize, imbalanceFactor
+        );
+    }
+}
@@ -0,0 +1,50 @@
+package benchmark;
+
+// what removing soft-deleted nodes from a graph has cost so far. compactions hold the graph exclusively,
+// so the durations are also how long writers waited behind them
+public class CompactionMetrics {
+    private final long compactions;
+    private final long totalTimeMs;
+    private final long maxTimeMs;
+    private final long lastTimeMs;
+    private final long freedBytes;
+
+    public CompactionMetrics(long compactions, long totalTimeMs, long maxTimeMs, long lastTimeMs, long freedBytes) {
+        this.compactions = compactions;
+        this.totalTimeMs = totalTimeMs;
+        this.maxTimeMs = maxTimeMs;
+        this.lastTimeMs = lastTimeMs;
+        this.freedBytes = freedBytes;
+    }
+
+    public long getCompactions() {
+        return compactions;
+    }
+
+    public long getTotalTimeMs() {
+        return totalTimeMs;
+    }
+
+    public long getMaxTimeMs() {
+        return maxTimeMs;
+    }
+
+    public long getLastTimeMs() {
+        return lastTimeMs;
+    }
+
+    public long getFreedBytes() {
+        return freedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                """
+                        Compactions: %d
+                        Time total / max / last: %d / %d / %d ms
+                        Freed: %d bytes""",
+                compactions, totalTimeMs, maxTimeMs, lastTimeMs, freedBytes
+        );
+    }
+}
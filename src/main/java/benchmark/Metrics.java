@@ -8,12 +8,24 @@ public class Metrics {
     double queryLatencyP99Micros;
     double throughputQPS;
     double avgDistanceCalculations; // every query checks how many vectors on an average
+    double bytesPerVector; // heap retained by the index after build, divided by its size
+    double scanGBps; // raw vector bytes touched by distance calculations per second of search time
 
     public Metrics(
             long buildTimeMs, long buildMemoryMB,
             double queryLatencyP50Micros, double queryLatencyP95Micros,
             double queryLatencyP99Micros, double throughputQPS,
             double avgDistanceCalculations
+    ) {
+        this(buildTimeMs, buildMemoryMB, queryLatencyP50Micros, queryLatencyP95Micros,
+                queryLatencyP99Micros, throughputQPS, avgDistanceCalculations, 0, 0);
+    }
+
+    public Metrics(
+            long buildTimeMs, long buildMemoryMB,
+            double queryLatencyP50Micros, double queryLatencyP95Micros,
+            double queryLatencyP99Micros, double throughputQPS,
+            double avgDistanceCalculations, double bytesPerVector, double scanGBps
     ) {
         this.buildTimeMs = buildTimeMs;
         this.buildMemoryMB = buildMemoryMB;
@@ -22,6 +34,8 @@ public class Metrics {
         this.queryLatencyP99Micros = queryLatencyP99Micros;
         this.throughputQPS = throughputQPS;
         this.avgDistanceCalculations = avgDistanceCalculations;
+        this.bytesPerVector = bytesPerVector;
+        this.scanGBps = scanGBps;
     }
 
     public long getBuildTimeMs() {
@@ -52,6 +66,14 @@ public class Metrics {
         return avgDistanceCalculations;
     }
 
+    public double getBytesPerVector() {
+        return bytesPerVector;
+    }
+
+    public double getScanGBps() {
+        return scanGBps;
+    }
+
     @Override
     public String toString() {
         return "Metrics{" +
@@ -62,6 +84,8 @@ public class Metrics {
                 ", queryLatencyP99Micros=" + queryLatencyP99Micros +
                 ", throughputQPS=" + throughputQPS +
                 ", avgDistanceCalculations=" + avgDistanceCalculations +
+                ", bytesPerVector=" + bytesPerVector +
+                ", scanGBps=" + scanGBps +
                 '}';
     }
 }
@@ -0,0 +1,43 @@
+package benchmark;
+
+public class ScalingMetrics {
+    private final int threads;
+    private final double p50Micros;
+    private final double p99Micros;
+    private final double throughputQPS;
+    private final double speedup;
+
+    public ScalingMetrics(int threads, double p50Micros, double p99Micros, double throughputQPS, double speedup) {
+        this.threads = threads;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.throughputQPS = throughputQPS;
+        this.speedup = speedup;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public double getP50Micros() {
+        return p50Micros;
+    }
+
+    public double getP99Micros() {
+        return p99Micros;
+    }
+
+    public double getThroughputQPS() {
+        return throughputQPS;
+    }
+
+    public double getSpeedup() {
+        return speedup;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%7d | %10.2f | %10.2f | %10.2f | %6.2fx",
+                threads, p50Micros, p99Micros, throughputQPS, speedup);
+    }
+}
@@ -0,0 +1,27 @@
+package core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// distance computations an index has done since the last reset, safe to update from any number of
+// threads. backed by a LongAdder: concurrent updates go to per-thread cells instead of racing on one
+// field, so nothing is lost and an uncontended update is a single add. bulk scans should add once per
+// scan rather than once per distance
+public final class DistanceCounter {
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long distances) {
+        count.add(distances);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+
+    public void reset() {
+        count.reset();
+    }
+}
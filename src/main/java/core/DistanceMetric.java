@@ -1,34 +1,77 @@
 package core;
 
 public class DistanceMetric {
+    // picked once at class init so every call site sees a single implementation and can inline it.
+    // run with --add-modules jdk.incubator.vector to get the SIMD kernels, -Dvector.kernels=scalar forces the fallback
+    private static final VectorKernels KERNELS = loadKernels();
+
+    private static VectorKernels loadKernels() {
+        if ("scalar".equalsIgnoreCase(System.getProperty("vector.kernels"))) {
+            return new ScalarVectorKernels();
+        }
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return new ScalarVectorKernels();
+        }
+        try {
+            return (VectorKernels) Class.forName("core.SimdVectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            System.out.println("SIMD distance kernels unavailable, using scalar fallback: " + e);
+            return new ScalarVectorKernels();
+        }
+    }
+
+    // which kernel implementation is active, for benchmark reports
+    public static String kernelName() {
+        return KERNELS.name();
+    }
+
     public static float cosineDistance(float[] vector1, float[] vector2) {
         if (vector1.length != vector2.length) {
             throw new IllegalArgumentException("Vectors must have the same length.");
         }
-        float product = 0.0f;
-        for (int i = 0; i < vector1.length; i ++) {
-            product += vector1[i] * vector2[i];
+        return cosineDistance(vector1, vector2, 0);
+    }
+
+    // compares vector1 against the vector1.length floats of data starting at offset
+    public static float cosineDistance(float[] vector1, float[] data, int offset) {
+        return 1.0f - KERNELS.cosineSimilarity(vector1, 0, data, offset, vector1.length);
+    }
+
+    public static float dotProduct(float[] vector1, float[] vector2) {
+        if (vector1.length != vector2.length) {
+            throw new IllegalArgumentException("Vectors must have the same length.");
         }
-        return 1.0f - product;
+        return dotProduct(vector1, vector2, 0);
+    }
+
+    public static float dotProduct(float[] vector1, float[] data, int offset) {
+        return KERNELS.dotProduct(vector1, 0, data, offset, vector1.length);
+    }
+
+    // vector1 against the four consecutive vectors of data starting at offset, results in out[0..3]
+    public static void dotProduct4(float[] vector1, float[] data, int offset, float[] out) {
+        KERNELS.dotProduct4(vector1, 0, data, offset, vector1.length, out);
     }
 
-    public float euclideanDistance(float[] vector1, float [] vector2) {
+    public static float squaredEuclideanDistance(float[] vector1, float[] vector2) {
         if (vector1.length != vector2.length) {
             throw new IllegalArgumentException("Vectors must have the same length.");
         }
-        float sum = 0;
-        for (int i = 0; i < vector1.length; i++) {
-            float diff = vector1[i] - vector2[i];
-            sum += diff*diff;
+        return squaredEuclideanDistance(vector1, vector2, 0);
+    }
+
+    public static float squaredEuclideanDistance(float[] vector1, float[] data, int offset) {
+        return KERNELS.squaredEuclidean(vector1, 0, data, offset, vector1.length);
+    }
+
+    public static float euclideanDistance(float[] vector1, float [] vector2) {
+        if (vector1.length != vector2.length) {
+            throw new IllegalArgumentException("Vectors must have the same length.");
         }
-        return (float) Math.sqrt(sum);
+        return euclideanDistance(vector1, vector2, 0);
     }
 
-    public float calculateDistance(float[] query, float[] data, String dataset) {
-        return switch (dataset) {
-            case "random" -> cosineDistance(query, data);
-            case "sift" -> euclideanDistance(query, data);
-            default -> 0.0f;
-        };
+    public static float euclideanDistance(float[] vector1, float[] data, int offset) {
+        return (float) Math.sqrt(KERNELS.squaredEuclidean(vector1, 0, data, offset, vector1.length));
     }
 }
@@ -1,129 +1,517 @@
 package core;
 
-import utils.CentroidDistance;
-
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class KMeans {
+    // k-means++ seeding runs on a random sample of at most this many points per cluster,
+    // seeding on the full set would cost as much as an extra iteration for little gain
+    private static final int SEEDING_SAMPLE_PER_CLUSTER = 64;
+    // below this many points per partition the fork/join overhead outweighs the work.
+    // partitions run on the common pool (the calling thread takes the first one), so no call pays for
+    // starting threads, which matters when IVF-PQ fits one small k-means per subspace
+    private static final int MIN_PARTITION_SIZE = 4096;
+    // an empty cluster is reseeded by splitting a populated one, both halves are nudged apart by this
+    // fraction of the centroids' spread in every dimension so the next assignment pass divides the points
+    // between them. the nudge is absolute, a relative one would leave zero coordinates (sparse data) untouched
+    private static final float SPLIT_EPSILON = 1.0f / 1024;
+    // balanced assignment only considers this many nearest centroids before falling back to a full scan
+    private static final int BALANCE_CANDIDATES = 8;
+
     private final int nClusters;
     private final int maxIterations;
+    private final int parallelism;
     private List<Vector> centroids;
+    // the same centroids packed back to back, this is what the distance loops read
+    private float[] centroidBlock;
     private final Random random;
-    private final int dimension;
+    private int dimension;
 
-    public KMeans(int nClusters, int maxIterations) {
+    public KMeans(int nClusters, int maxIterations, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
         this.nClusters = nClusters;
         this.maxIterations = maxIterations;
+        this.parallelism = parallelism;
         this.random = new Random(42);
-        this.dimension = 128;
+    }
+
+    public KMeans(int nClusters, int maxIterations) {
+        this(nClusters, maxIterations, Runtime.getRuntime().availableProcessors());
     }
 
     // run k-means clustering on the dataset
     public void fit(List<Vector> data) {
+        if (data.size() < nClusters) {
+            throw new IllegalArgumentException("Need at least " + nClusters + " vectors to fit " + nClusters + " clusters, got " + data.size());
+        }
         System.out.println("Running k-means with " + nClusters + " clusters");
+        this.dimension = data.get(0).dimensions();
 
-        // initialize centroids randomly
+        // k-means++ seeding
         initializeCentroids(data);
 
+        int[] assignments = new int[data.size()];
+        Arrays.fill(assignments, -1);
+        // reseeding stops once a split doesn't stick, e.g. when there are fewer distinct points than clusters
+        boolean reseed = true;
+        int lastReseeded = 0;
         // iterate to refine cluster
         for (int i = 0; i < maxIterations; i++) {
-            // assign each vector to nearest centroid
-            List<List<Vector>> clusters = assignToCluster(data);
+            // assign each vector to nearest centroid and accumulate the new means in the same pass
+            Accumulator total = accumulate(data, assignments);
 
             // update centroids (mean of each cluster)
-            boolean changed = updateCentroids(clusters);
+            updateCentroids(total);
+            int empty = 0;
+            for (int count : total.counts) {
+                if (count == 0) {
+                    empty++;
+                }
+            }
+            if (reseed && empty > 0 && empty == lastReseeded) {
+                System.out.println(empty + " clusters stay empty after reseeding, keeping them");
+                reseed = false;
+            }
+            int reseeded = reseed ? splitIntoEmptyClusters(total.counts) : 0;
+            if (reseeded > 0) {
+                System.out.println("Reseeded " + reseeded + " empty clusters at iteration " + (i + 1));
+            }
+            lastReseeded = reseeded;
 
-            // break early if converged
-            if (!changed && i > 5) {
-                System.out.println("Converged at iteration " + i);
+            // break early once no vector switches cluster
+            if (total.changed == 0 && reseeded == 0) {
+                System.out.println("Converged at iteration " + (i + 1));
                 break;
             }
 
             if ((i+1) % 5 == 0) {
-                System.out.println("K-means iteration " + (i+1)+"/" + maxIterations);
+                System.out.println("K-means iteration " + (i+1)+"/" + maxIterations + ", " + total.changed + " reassigned");
             }
         }
         System.out.println("K-means clustering complete");
     }
 
-    // initialize centroids by randomly selecting vectors from dataset
-    private void initializeCentroids(List<Vector> data) {
-        centroids = new ArrayList<>(nClusters);
+    // train on a random sample of sampleSize vectors instead of the full set, so an iteration costs
+    // sampleSize x nClusters rather than N x nClusters. 0 (or anything >= data.size()) uses every vector
+    public void fit(List<Vector> data, int sampleSize) {
+        if (sampleSize <= 0 || sampleSize >= data.size()) {
+            fit(data);
+            return;
+        }
+        int[] indices = sampleIndices(data.size(), sampleSize, random);
+        List<Vector> sample = new ArrayList<>(sampleSize);
+        for (int index : indices) {
+            sample.add(data.get(index));
+        }
+        System.out.println("Training on a sample of " + sampleSize + " / " + data.size() + " vectors");
+        fit(sample);
+    }
+
+    // nearest centroid of every vector in one parallel pass, written into assignments.
+    // returns the mean squared distance to the assigned centroid (the quantization error)
+    public double assign(List<Vector> data, int[] assignments) {
+        return sumOverPartitions(data.size(), (from, to) -> assignRange(data, assignments, from, to)) / data.size();
+    }
 
-        // randomly select nClusters vectors as initial centroids
-        List<Integer> indices = new ArrayList<>();
-        for (int i = 0; i < data.size(); i++) {
-            indices.add(i);
+    // like assign, but no cluster gets more than maxClusterSize vectors. every cluster first keeps
+    // the maxClusterSize vectors closest to it, the rest move to their nearest candidate centroid that
+    // still has room. trades a slightly higher quantization error for bounded list lengths
+    public double assignBalanced(List<Vector> data, int[] assignments, int maxClusterSize) {
+        int n = data.size();
+        if ((long) maxClusterSize * nClusters < n) {
+            throw new IllegalArgumentException(nClusters + " clusters of at most " + maxClusterSize + " cannot hold " + n + " vectors");
         }
-        Collections.shuffle(indices, random);
+        int r = Math.min(nClusters, BALANCE_CANDIDATES);
+        int[] candidates = new int[n * r];
+        float[] candidateDistances = new float[n * r];
+        sumOverPartitions(n, (from, to) -> {
+            TopKSelector topK = new TopKSelector(r);
+            for (int i = from; i < to; i++) {
+                topK.reset();
+                float[] vector = data.get(i).vector();
+                for (int c = 0; c < nClusters; c++) {
+                    topK.offer(c, DistanceMetric.squaredEuclideanDistance(vector, centroidBlock, c * dimension));
+                }
+                topK.sort();
+                for (int j = 0; j < r; j++) {
+                    candidates[i * r + j] = topK.slot(j);
+                    candidateDistances[i * r + j] = topK.distance(j);
+                }
+            }
+            return 0;
+        });
 
-        for (int i = 0; i < nClusters; i++) {
-            Vector original = data.get(indices.get(i));
-            // create a copy of vector
-            float[] centroidData = Arrays.copyOf(original.vector(), original.dimensions());
-            centroids.add(new Vector("centroid_" + i, centroidData));
+        // group vectors by first choice, members packed as (distance bits << 32 | index) so sorting the
+        // longs orders them by distance (non-negative floats compare like their bit patterns)
+        int[] sizes = new int[nClusters];
+        for (int i = 0; i < n; i++) {
+            sizes[candidates[i * r]]++;
+        }
+        long[][] members = new long[nClusters][];
+        for (int c = 0; c < nClusters; c++) {
+            members[c] = new long[sizes[c]];
+            sizes[c] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            int c = candidates[i * r];
+            members[c][sizes[c]++] = ((long) Float.floatToRawIntBits(candidateDistances[i * r]) << 32) | i;
         }
-    }
 
-    // assign each vector to its nearest centroid
-    private List<List<Vector>> assignToCluster(List<Vector> data) {
-        // initialize empty clusters
-        List<List<Vector>> clusters = new ArrayList<>(nClusters);
-        for (int i = 0; i < nClusters; i++) {
-            clusters.add(new ArrayList<>());
+        int evictedCount = 0;
+        int[] evicted = new int[n];
+        for (int c = 0; c < nClusters; c++) {
+            long[] clusterMembers = members[c];
+            if (clusterMembers.length > maxClusterSize) {
+                Arrays.sort(clusterMembers);
+            }
+            for (int j = 0; j < clusterMembers.length; j++) {
+                int i = (int) clusterMembers[j];
+                if (j < maxClusterSize) {
+                    assignments[i] = c;
+                } else {
+                    evicted[evictedCount++] = i;
+                }
+            }
+            sizes[c] = Math.min(clusterMembers.length, maxClusterSize);
         }
 
-        // assign each vector to the nearest centroid
-        for (Vector v : data) {
-            int nearestCluster = findNearestCentroid(v.vector());
-            clusters.get(nearestCluster).add(v);
+        double error = 0;
+        for (int i = 0; i < n; i++) {
+            error += candidateDistances[i * r];
+        }
+        for (int e = 0; e < evictedCount; e++) {
+            int i = evicted[e];
+            int target = -1;
+            float distance = 0;
+            for (int j = 1; j < r && target < 0; j++) {
+                if (sizes[candidates[i * r + j]] < maxClusterSize) {
+                    target = candidates[i * r + j];
+                    distance = candidateDistances[i * r + j];
+                }
+            }
+            if (target < 0) {
+                // every candidate is full, take the nearest centroid that still has room
+                float[] vector = data.get(i).vector();
+                distance = Float.POSITIVE_INFINITY;
+                for (int c = 0; c < nClusters; c++) {
+                    if (sizes[c] < maxClusterSize) {
+                        float d = DistanceMetric.squaredEuclideanDistance(vector, centroidBlock, c * dimension);
+                        if (d < distance) {
+                            distance = d;
+                            target = c;
+                        }
+                    }
+                }
+            }
+            assignments[i] = target;
+            sizes[target]++;
+            error += distance - candidateDistances[i * r];
         }
+        System.out.println("Balanced assignment moved " + evictedCount + " vectors out of full clusters");
+        return error / n;
+    }
+
+    // spill (redundant) assignment: besides assignments[i] every vector also joins up to maxAssignments - 1
+    // of its nearest clusters whose centroid is at most distanceRatio times as far as the primary one.
+    // each row is ascending and includes the primary cluster
+    public int[][] assignSpill(List<Vector> data, int[] assignments, int maxAssignments, double distanceRatio) {
+        int[][] clusters = new int[data.size()][];
+        sumOverPartitions(data.size(), (from, to) -> {
+            TopKSelector topK = new TopKSelector(Math.min(maxAssignments, nClusters));
+            int[] candidates = new int[topK.capacity()];
+            for (int i = from; i < to; i++) {
+                float[] vector = data.get(i).vector();
+                topK.reset();
+                for (int c = 0; c < nClusters; c++) {
+                    topK.offer(c, DistanceMetric.squaredEuclideanDistance(vector, centroidBlock, c * dimension));
+                }
+                int n = topK.sort();
+                for (int j = 0; j < n; j++) {
+                    candidates[j] = topK.slot(j);
+                }
+                clusters[i] = spillClusters(vector, assignments[i], candidates, maxAssignments, distanceRatio);
+            }
+            return 0;
+        });
         return clusters;
     }
 
-    // update centroids to be the mean of their assigned vectors
-    // returns true if any centroid changed significantly
-    private boolean updateCentroids(List<List<Vector>> clusters) {
-        boolean changed = false;
+    // the primary cluster plus every candidate within distanceRatio of it, at most maxAssignments in total,
+    // candidates are taken in the order given (nearest first). returned ascending
+    public int[] spillClusters(float[] vector, int primary, int[] candidates, int maxAssignments, double distanceRatio) {
+        double limit = distanceRatio * distanceRatio * DistanceMetric.squaredEuclideanDistance(vector, centroidBlock, primary * dimension);
+        int[] clusters = new int[maxAssignments];
+        clusters[0] = primary;
+        int n = 1;
+        for (int c : candidates) {
+            if (n == maxAssignments) {
+                break;
+            }
+            if (c != primary && DistanceMetric.squaredEuclideanDistance(vector, centroidBlock, c * dimension) <= limit) {
+                clusters[n++] = c;
+            }
+        }
+        int[] result = Arrays.copyOf(clusters, n);
+        Arrays.sort(result);
+        return result;
+    }
 
-        for (int i = 0; i < nClusters; i++) {
-            List<Vector> cluster = clusters.get(i);
+    private interface RangeTask {
+        double run(int from, int to);
+    }
 
-            // skip empty cluster
-            if (cluster.isEmpty()) continue;
+    private int partitions(int size) {
+        return Math.max(1, Math.min(parallelism, size / MIN_PARTITION_SIZE));
+    }
 
-            // calculate mean of all vectors in a cluster
-            float [] newCentroid = new float[dimension];
+    // splits [0, size) into contiguous ranges run in parallel and sums what they return
+    private double sumOverPartitions(int size, RangeTask task) {
+        int partitions = partitions(size);
+        List<ForkJoinTask<Double>> tasks = new ArrayList<>(partitions - 1);
+        for (int p = 1; p < partitions; p++) {
+            int from = (int) ((long) size * p / partitions);
+            int to = (int) ((long) size * (p + 1) / partitions);
+            tasks.add(ForkJoinPool.commonPool().submit(() -> task.run(from, to)));
+        }
+        double sum = task.run(0, size / partitions);
+        for (ForkJoinTask<Double> t : tasks) {
+            sum += t.join();
+        }
+        return sum;
+    }
 
-            for (Vector v : cluster) {
-                for (int d = 0; d < dimension; d++) {
-                    newCentroid[d] += v.vector()[d];
+    private double assignRange(List<Vector> data, int[] assignments, int from, int to) {
+        double error = 0;
+        for (int i = from; i < to; i++) {
+            float[] vector = data.get(i).vector();
+            int nearest = findNearestCentroid(vector);
+            assignments[i] = nearest;
+            error += DistanceMetric.squaredEuclideanDistance(vector, centroidBlock, nearest * dimension);
+        }
+        return error;
+    }
+
+    // k-means++: each next centroid is drawn with probability proportional to its squared distance
+    // from the nearest centroid picked so far, which spreads the seeds over the data
+    private void initializeCentroids(List<Vector> data) {
+        int sampleSize = (int) Math.min(data.size(), (long) nClusters * SEEDING_SAMPLE_PER_CLUSTER);
+        int[] sample = sampleIndices(data.size(), sampleSize, random);
+
+        centroidBlock = new float[nClusters * dimension];
+        float[] minDistance = new float[sampleSize];
+        Arrays.fill(minDistance, Float.POSITIVE_INFINITY);
+
+        int chosen = sample[random.nextInt(sampleSize)];
+        for (int c = 0; c < nClusters; c++) {
+            System.arraycopy(data.get(chosen).vector(), 0, centroidBlock, c * dimension, dimension);
+            if (c == nClusters - 1) {
+                break;
+            }
+            double sum = 0;
+            for (int s = 0; s < sampleSize; s++) {
+                float distance = DistanceMetric.squaredEuclideanDistance(data.get(sample[s]).vector(), centroidBlock, c * dimension);
+                if (distance < minDistance[s]) {
+                    minDistance[s] = distance;
                 }
+                sum += minDistance[s];
+            }
+            chosen = sample[pickWeighted(minDistance, sum)];
+        }
+        publishCentroids();
+    }
+
+    // index drawn with probability weights[i] / sum, uniform if every weight is zero (duplicate points)
+    private int pickWeighted(float[] weights, double sum) {
+        if (sum <= 0) {
+            return random.nextInt(weights.length);
+        }
+        double target = random.nextDouble() * sum;
+        for (int i = 0; i < weights.length; i++) {
+            target -= weights[i];
+            if (target <= 0) {
+                return i;
             }
+        }
+        return weights.length - 1;
+    }
 
+    // sampleSize distinct indices out of [0, n), partial Fisher-Yates over a primitive array
+    public static int[] sampleIndices(int n, int sampleSize, Random random) {
+        int[] indices = new int[n];
+        for (int i = 0; i < n; i++) {
+            indices[i] = i;
+        }
+        for (int i = 0; i < sampleSize; i++) {
+            int j = i + random.nextInt(n - i);
+            int tmp = indices[i];
+            indices[i] = indices[j];
+            indices[j] = tmp;
+        }
+        return Arrays.copyOf(indices, sampleSize);
+    }
+
+    // per-partition running sums, merged once the partitions are done so workers never share state
+    private final class Accumulator {
+        final double[] sums = new double[nClusters * dimension];
+        final int[] counts = new int[nClusters];
+        int changed;
+
+        void add(Accumulator other) {
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += other.sums[i];
+            }
+            for (int c = 0; c < nClusters; c++) {
+                counts[c] += other.counts[c];
+            }
+            changed += other.changed;
+        }
+    }
+
+    // assign each vector to its nearest centroid
+    private Accumulator accumulate(List<Vector> data, int[] assignments) {
+        int size = data.size();
+        int partitions = partitions(size);
+        List<ForkJoinTask<Accumulator>> tasks = new ArrayList<>(partitions - 1);
+        for (int p = 1; p < partitions; p++) {
+            int from = (int) ((long) size * p / partitions);
+            int to = (int) ((long) size * (p + 1) / partitions);
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                Accumulator local = new Accumulator();
+                accumulateRange(data, assignments, from, to, local);
+                return local;
+            }));
+        }
+        Accumulator total = new Accumulator();
+        accumulateRange(data, assignments, 0, size / partitions, total);
+        for (ForkJoinTask<Accumulator> task : tasks) {
+            total.add(task.join());
+        }
+        return total;
+    }
+
+    private void accumulateRange(List<Vector> data, int[] assignments, int from, int to, Accumulator accumulator) {
+        double[] sums = accumulator.sums;
+        for (int i = from; i < to; i++) {
+            float[] vector = data.get(i).vector();
+            int nearest = findNearestCentroid(vector);
+            if (assignments[i] != nearest) {
+                assignments[i] = nearest;
+                accumulator.changed++;
+            }
+            accumulator.counts[nearest]++;
+            int base = nearest * dimension;
+            for (int d = 0; d < dimension; d++) {
+                sums[base + d] += vector[d];
+            }
+        }
+    }
+
+    // move every centroid to the mean of its assigned vectors, an empty cluster keeps its centroid
+    // until splitIntoEmptyClusters reseeds it
+    private void updateCentroids(Accumulator total) {
+        for (int c = 0; c < nClusters; c++) {
+            int count = total.counts[c];
+            if (count == 0) {
+                continue;
+            }
+            int base = c * dimension;
+            for (int d = 0; d < dimension; d++) {
+                centroidBlock[base + d] = (float) (total.sums[base + d] / count);
+            }
+        }
+        publishCentroids();
+    }
+
+    // every empty cluster takes over half of a populated one, picked with probability proportional to
+    // its size so big clusters are split first. the centroid is copied and the two copies pushed apart
+    // by SPLIT_EPSILON, the counts are split evenly so a large cluster can be split more than once.
+    // returns how many clusters were reseeded
+    private int splitIntoEmptyClusters(int[] counts) {
+        float[] nudge = null;
+        int reseeded = 0;
+        for (int c = 0; c < nClusters; c++) {
+            if (counts[c] > 0) {
+                continue;
+            }
+            long splittable = 0;
+            for (int j = 0; j < nClusters; j++) {
+                splittable += Math.max(0, counts[j] - 1);
+            }
+            if (splittable == 0) {
+                break;
+            }
+            long target = (long) (random.nextDouble() * splittable);
+            int source = 0;
+            for (int j = 0; j < nClusters; j++) {
+                target -= Math.max(0, counts[j] - 1);
+                if (target < 0) {
+                    source = j;
+                    break;
+                }
+            }
+            if (nudge == null) {
+                nudge = splitNudge();
+            }
+            int base = c * dimension;
+            int sourceBase = source * dimension;
             for (int d = 0; d < dimension; d++) {
-                newCentroid[d] /= cluster.size();
+                float value = centroidBlock[sourceBase + d];
+                float delta = d % 2 == 0 ? nudge[d] : -nudge[d];
+                centroidBlock[base + d] = value + delta;
+                centroidBlock[sourceBase + d] = value - delta;
             }
+            counts[c] = counts[source] / 2;
+            counts[source] -= counts[c];
+            reseeded++;
+        }
+        if (reseeded > 0) {
+            publishCentroids();
+        }
+        return reseeded;
+    }
 
-            //check if centroid changed significantly
-            float distance = new DistanceMetric().euclideanDistance(centroids.get(i).vector(), newCentroid);
-            if (distance > 0.01f) {
-                changed = true;
+    // SPLIT_EPSILON times the spread of the centroids along each dimension. a dimension all centroids
+    // agree on takes the average spread of the others (1 if every centroid is the same point)
+    private float[] splitNudge() {
+        float[] nudge = new float[dimension];
+        double total = 0;
+        for (int d = 0; d < dimension; d++) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int c = 0; c < nClusters; c++) {
+                float value = centroidBlock[c * dimension + d];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
             }
+            nudge[d] = max - min;
+            total += nudge[d];
+        }
+        float fallback = total > 0 ? (float) (total / dimension) : 1.0f;
+        for (int d = 0; d < dimension; d++) {
+            nudge[d] = SPLIT_EPSILON * (nudge[d] > 0 ? nudge[d] : fallback);
+        }
+        return nudge;
+    }
 
-            // update centroid
-            centroids.set(i, new Vector("centroid_" + i, newCentroid));
+    private void publishCentroids() {
+        List<Vector> updated = new ArrayList<>(nClusters);
+        for (int c = 0; c < nClusters; c++) {
+            updated.add(new Vector("centroid_" + c, Arrays.copyOfRange(centroidBlock, c * dimension, (c + 1) * dimension)));
         }
-        return changed;
+        centroids = updated;
     }
 
-    // find the nearest centroid (used during build)
+    // find the nearest centroid (used during build and inserts)
     public int findNearestCentroid(float[] vector) {
         int nearest = 0;
-        float minDistance = new DistanceMetric().euclideanDistance(vector, centroids.get(0).vector());
+        // squared distances rank the same as euclidean ones without the sqrt
+        float minDistance = DistanceMetric.squaredEuclideanDistance(vector, centroidBlock, 0);
 
         for (int i = 1; i < nClusters; i++) {
-            float distance = new DistanceMetric().euclideanDistance(vector, centroids.get(i).vector());
+            float distance = DistanceMetric.squaredEuclideanDistance(vector, centroidBlock, i * dimension);
             if (distance < minDistance) {
                 minDistance = distance;
                 nearest = i;
@@ -134,16 +522,16 @@ public class KMeans {
 
     // find nProbe nearest centroids(used during search)
     public List<Integer> findNearestCentroids(float [] query, int nProbe) {
-        List<CentroidDistance> distances = new ArrayList<>();
+        TopKSelector topK = new TopKSelector(Math.min(nProbe, nClusters));
         for (int i = 0; i < nClusters; i++) {
-            float distance = new DistanceMetric().euclideanDistance(query, centroids.get(i).vector());
-            distances.add(new CentroidDistance(i, distance));
+            float distance = DistanceMetric.squaredEuclideanDistance(query, centroidBlock, i * dimension);
+            topK.offer(i, distance);
         }
-        Collections.sort(distances);
 
-        List<Integer> result = new ArrayList<>();
-        for (int i = 0; i < Math.min(nProbe, distances.size()); i ++) {
-            result.add(distances.get(i).getClusterId());
+        int n = topK.sort();
+        List<Integer> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i ++) {
+            result.add(topK.slot(i));
         }
         return result;
     }
@@ -0,0 +1,55 @@
+package core;
+
+// distance function bound to an index when it is created.
+// score() is what hot loops rank by (smaller is closer), toDistance() turns the k survivors
+// into the reported distance, so L2 only pays for Math.sqrt on the final results.
+public enum Metric {
+    L2 {
+        @Override
+        public float score(float[] query, float[] data, int offset) {
+            return DistanceMetric.squaredEuclideanDistance(query, data, offset);
+        }
+
+        @Override
+        public float toDistance(float score) {
+            return (float) Math.sqrt(score);
+        }
+    },
+    L2_SQUARED {
+        @Override
+        public float score(float[] query, float[] data, int offset) {
+            return DistanceMetric.squaredEuclideanDistance(query, data, offset);
+        }
+    },
+    COSINE {
+        @Override
+        public float score(float[] query, float[] data, int offset) {
+            return DistanceMetric.cosineDistance(query, data, offset);
+        }
+    },
+    // 1 - dot product, equal to cosine distance for unit-length vectors but without the norms
+    INNER_PRODUCT {
+        @Override
+        public float score(float[] query, float[] data, int offset) {
+            return 1.0f - DistanceMetric.dotProduct(query, data, offset);
+        }
+    };
+
+    // compares query against the query.length floats of data starting at offset
+    public abstract float score(float[] query, float[] data, int offset);
+
+    public float score(float[] query, float[] data) {
+        if (query.length != data.length) {
+            throw new IllegalArgumentException("Vectors must have the same length.");
+        }
+        return score(query, data, 0);
+    }
+
+    public float toDistance(float score) {
+        return score;
+    }
+
+    public float distance(float[] query, float[] data) {
+        return toDistance(score(query, data));
+    }
+}
@@ -0,0 +1,153 @@
+package core;
+
+import java.util.Arrays;
+import java.util.List;
+
+// SQ8: every dimension is stored as one unsigned byte, linearly mapped onto that dimension's [min, max].
+// 4x smaller than float storage and needs no training beyond one pass for the ranges.
+// L2 scans quantize the query with the same ranges and compare codes with an integer kernel.
+// code differences are weighted by each dimension's squared step (rounded to 8 bits) so wide and
+// narrow dimensions count the way they do in float space; re-ranking restores exact order.
+public class ScalarQuantizer {
+    private static final int LEVELS = 255;
+    private static final int WEIGHT_LEVELS = 255;
+
+    private final int dimension;
+    private final float[] min;
+    // width of one code step per dimension, (max - min) / 255
+    private final float[] step;
+    // integer weights ~ step^2, weightUnit turns a weighted code distance back into a float distance
+    private final int[] weights;
+    private final float weightUnit;
+
+    public ScalarQuantizer(float[] min, float[] max) {
+        if (min.length != max.length) {
+            throw new IllegalArgumentException("min and max must have the same length");
+        }
+        this.dimension = min.length;
+        this.min = min.clone();
+        this.step = new float[dimension];
+        float maxSquaredStep = 0;
+        for (int d = 0; d < dimension; d++) {
+            float range = max[d] - min[d];
+            // constant dimensions get a unit step so encoding never divides by zero
+            step[d] = range > 0 ? range / LEVELS : 1.0f;
+            maxSquaredStep = Math.max(maxSquaredStep, step[d] * step[d]);
+        }
+        this.weights = new int[dimension];
+        for (int d = 0; d < dimension; d++) {
+            weights[d] = Math.max(1, Math.round(WEIGHT_LEVELS * step[d] * step[d] / maxSquaredStep));
+        }
+        this.weightUnit = maxSquaredStep / WEIGHT_LEVELS;
+    }
+
+    // per-dimension min/max over the given vectors
+    public static ScalarQuantizer train(List<Vector> vectors) {
+        int dimension = vectors.get(0).dimensions();
+        float[] min = new float[dimension];
+        float[] max = new float[dimension];
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        for (Vector v : vectors) {
+            float[] data = v.vector();
+            for (int d = 0; d < dimension; d++) {
+                min[d] = Math.min(min[d], data[d]);
+                max[d] = Math.max(max[d], data[d]);
+            }
+        }
+        return new ScalarQuantizer(min, max);
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    // write the dimension codes of vector into codes[offset, offset + dimension), values outside the range are clamped
+    public void encode(float[] vector, byte[] codes, int offset) {
+        for (int d = 0; d < dimension; d++) {
+            int code = Math.round((vector[d] - min[d]) / step[d]);
+            codes[offset + d] = (byte) Math.max(0, Math.min(LEVELS, code));
+        }
+    }
+
+    public byte[] encode(float[] vector) {
+        byte[] codes = new byte[dimension];
+        encode(vector, codes, 0);
+        return codes;
+    }
+
+    // bytes held by the ranges, shared by every encoded vector
+    public long allocatedBytes() {
+        return 3 * (16L + 4L * dimension);
+    }
+
+    // prepares a query once so each encoded vector costs a single kernel call
+    public Scorer scorer(float[] query, Metric metric) {
+        if (query.length != dimension) {
+            throw new IllegalArgumentException("Expected dimension " + dimension + " but got " + query.length);
+        }
+        if (metric == Metric.L2 || metric == Metric.L2_SQUARED) {
+            byte[] queryCodes = encode(query);
+            return (codes, offset) -> weightUnit * squaredDistance(queryCodes, 0, codes, offset, weights, dimension);
+        }
+        // dot(q, x) ~ sum(q[d] * min[d]) + sum(q[d] * step[d] * code[d]), the first term is fixed per query.
+        // COSINE is ranked as inner product here, which assumes unit-length vectors
+        float[] queryWeights = new float[dimension];
+        float bias = 0;
+        for (int d = 0; d < dimension; d++) {
+            queryWeights[d] = query[d] * step[d];
+            bias += query[d] * min[d];
+        }
+        float offsetScore = 1.0f - bias;
+        return (codes, offset) -> offsetScore - weightedSum(queryWeights, codes, offset, dimension);
+    }
+
+    // integer weighted squared L2 between two code vectors. one term is at most 255^3, so an int holds
+    // 128 of them: each 512-dimension block spreads at most 128 terms over each of the four accumulators
+    // and block sums are folded into a long. the up to 3 leftover terms of a block go straight into the long,
+    // sum0 already holds 127 terms when a partial block leaves any
+    public static long squaredDistance(byte[] a, int aOffset, byte[] b, int bOffset, int[] weights, int length) {
+        long total = 0;
+        for (int blockStart = 0; blockStart < length; blockStart += 512) {
+            int blockEnd = Math.min(length, blockStart + 512);
+            int sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+            int i = blockStart;
+            for (; i + 3 < blockEnd; i += 4) {
+                int d0 = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+                int d1 = (a[aOffset + i + 1] & 0xFF) - (b[bOffset + i + 1] & 0xFF);
+                int d2 = (a[aOffset + i + 2] & 0xFF) - (b[bOffset + i + 2] & 0xFF);
+                int d3 = (a[aOffset + i + 3] & 0xFF) - (b[bOffset + i + 3] & 0xFF);
+                sum0 += weights[i] * d0 * d0;
+                sum1 += weights[i + 1] * d1 * d1;
+                sum2 += weights[i + 2] * d2 * d2;
+                sum3 += weights[i + 3] * d3 * d3;
+            }
+            for (; i < blockEnd; i++) {
+                int d = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+                total += weights[i] * d * d;
+            }
+            total += (long) sum0 + sum1 + sum2 + sum3;
+        }
+        return total;
+    }
+
+    private static float weightedSum(float[] weights, byte[] codes, int offset, int length) {
+        float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            sum0 += weights[i] * (codes[offset + i] & 0xFF);
+            sum1 += weights[i + 1] * (codes[offset + i + 1] & 0xFF);
+            sum2 += weights[i + 2] * (codes[offset + i + 2] & 0xFF);
+            sum3 += weights[i + 3] * (codes[offset + i + 3] & 0xFF);
+        }
+        for (; i < length; i++) {
+            sum0 += weights[i] * (codes[offset + i] & 0xFF);
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    // approximate ranking score of one encoded vector against a prepared query, smaller is closer
+    public interface Scorer {
+        float score(byte[] codes, int offset);
+    }
+}
@@ -0,0 +1,93 @@
+package core;
+
+// plain java kernels, used when the incubator vector module isn't available.
+// four independent accumulators break the add dependency chain so the loop pipelines.
+final class ScalarVectorKernels implements VectorKernels {
+
+    @Override
+    public String name() {
+        return "scalar (4-way unrolled)";
+    }
+
+    @Override
+    public float squaredEuclidean(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            float d0 = a[aOffset + i] - b[bOffset + i];
+            float d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+            float d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+            float d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+            sum0 += d0 * d0;
+            sum1 += d1 * d1;
+            sum2 += d2 * d2;
+            sum3 += d3 * d3;
+        }
+        for (; i < length; i++) {
+            float d = a[aOffset + i] - b[bOffset + i];
+            sum0 += d * d;
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    @Override
+    public float dotProduct(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            sum0 += a[aOffset + i] * b[bOffset + i];
+            sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            sum2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            sum3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            sum0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    @Override
+    public void dotProduct4(float[] a, int aOffset, float[] b, int bOffset, int length, float[] out) {
+        float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int b1 = bOffset + length, b2 = b1 + length, b3 = b2 + length;
+        for (int i = 0; i < length; i++) {
+            float av = a[aOffset + i];
+            sum0 += av * b[bOffset + i];
+            sum1 += av * b[b1 + i];
+            sum2 += av * b[b2 + i];
+            sum3 += av * b[b3 + i];
+        }
+        out[0] = sum0;
+        out[1] = sum1;
+        out[2] = sum2;
+        out[3] = sum3;
+    }
+
+    @Override
+    public float cosineSimilarity(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float dot0 = 0, dot1 = 0, normA0 = 0, normA1 = 0, normB0 = 0, normB1 = 0;
+        int i = 0;
+        for (; i + 1 < length; i += 2) {
+            float a0 = a[aOffset + i], a1 = a[aOffset + i + 1];
+            float b0 = b[bOffset + i], b1 = b[bOffset + i + 1];
+            dot0 += a0 * b0;
+            dot1 += a1 * b1;
+            normA0 += a0 * a0;
+            normA1 += a1 * a1;
+            normB0 += b0 * b0;
+            normB1 += b1 * b1;
+        }
+        for (; i < length; i++) {
+            float a0 = a[aOffset + i], b0 = b[bOffset + i];
+            dot0 += a0 * b0;
+            normA0 += a0 * a0;
+            normB0 += b0 * b0;
+        }
+        return cosine(dot0 + dot1, normA0 + normA1, normB0 + normB1);
+    }
+
+    static float cosine(float dot, float normA, float normB) {
+        float denominator = (float) Math.sqrt((double) normA * normB);
+        return denominator == 0 ? 0 : dot / denominator;
+    }
+}
@@ -0,0 +1,150 @@
+package core;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Panama vector API kernels. Only loaded reflectively by DistanceMetric after checking that
+// jdk.incubator.vector is in the boot layer, so the rest of the code never links against it.
+final class SimdVectorKernels implements VectorKernels {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int WIDTH = SPECIES.length();
+    private static final int UNROLLED = WIDTH * 4;
+
+    SimdVectorKernels() {
+        // 64-bit vectors hold two floats, not worth the reduction overhead over the scalar loop
+        if (SPECIES.vectorBitSize() < 128) {
+            throw new UnsupportedOperationException("Preferred vector size is only " + SPECIES.vectorBitSize() + " bits");
+        }
+    }
+
+    @Override
+    public String name() {
+        return "simd (" + SPECIES.vectorBitSize() + "-bit, " + WIDTH + " lanes, 4 accumulators)";
+    }
+
+    @Override
+    public float squaredEuclidean(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector acc0 = FloatVector.zero(SPECIES);
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+        FloatVector acc2 = FloatVector.zero(SPECIES);
+        FloatVector acc3 = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (; i + UNROLLED <= length; i += UNROLLED) {
+            FloatVector d0 = FloatVector.fromArray(SPECIES, a, aOffset + i).sub(FloatVector.fromArray(SPECIES, b, bOffset + i));
+            FloatVector d1 = FloatVector.fromArray(SPECIES, a, aOffset + i + WIDTH).sub(FloatVector.fromArray(SPECIES, b, bOffset + i + WIDTH));
+            FloatVector d2 = FloatVector.fromArray(SPECIES, a, aOffset + i + 2 * WIDTH).sub(FloatVector.fromArray(SPECIES, b, bOffset + i + 2 * WIDTH));
+            FloatVector d3 = FloatVector.fromArray(SPECIES, a, aOffset + i + 3 * WIDTH).sub(FloatVector.fromArray(SPECIES, b, bOffset + i + 3 * WIDTH));
+            acc0 = d0.fma(d0, acc0);
+            acc1 = d1.fma(d1, acc1);
+            acc2 = d2.fma(d2, acc2);
+            acc3 = d3.fma(d3, acc3);
+        }
+        for (; i + WIDTH <= length; i += WIDTH) {
+            FloatVector d = FloatVector.fromArray(SPECIES, a, aOffset + i).sub(FloatVector.fromArray(SPECIES, b, bOffset + i));
+            acc0 = d.fma(d, acc0);
+        }
+        float sum = acc0.add(acc1).add(acc2.add(acc3)).reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            float d = a[aOffset + i] - b[bOffset + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    @Override
+    public float dotProduct(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector acc0 = FloatVector.zero(SPECIES);
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+        FloatVector acc2 = FloatVector.zero(SPECIES);
+        FloatVector acc3 = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (; i + UNROLLED <= length; i += UNROLLED) {
+            acc0 = FloatVector.fromArray(SPECIES, a, aOffset + i).fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc0);
+            acc1 = FloatVector.fromArray(SPECIES, a, aOffset + i + WIDTH).fma(FloatVector.fromArray(SPECIES, b, bOffset + i + WIDTH), acc1);
+            acc2 = FloatVector.fromArray(SPECIES, a, aOffset + i + 2 * WIDTH).fma(FloatVector.fromArray(SPECIES, b, bOffset + i + 2 * WIDTH), acc2);
+            acc3 = FloatVector.fromArray(SPECIES, a, aOffset + i + 3 * WIDTH).fma(FloatVector.fromArray(SPECIES, b, bOffset + i + 3 * WIDTH), acc3);
+        }
+        for (; i + WIDTH <= length; i += WIDTH) {
+            acc0 = FloatVector.fromArray(SPECIES, a, aOffset + i).fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc0);
+        }
+        float sum = acc0.add(acc1).add(acc2.add(acc3)).reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void dotProduct4(float[] a, int aOffset, float[] b, int bOffset, int length, float[] out) {
+        FloatVector acc0 = FloatVector.zero(SPECIES);
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+        FloatVector acc2 = FloatVector.zero(SPECIES);
+        FloatVector acc3 = FloatVector.zero(SPECIES);
+        int b1 = bOffset + length, b2 = b1 + length, b3 = b2 + length;
+        int i = 0;
+        for (; i + WIDTH <= length; i += WIDTH) {
+            FloatVector av = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            acc0 = av.fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc0);
+            acc1 = av.fma(FloatVector.fromArray(SPECIES, b, b1 + i), acc1);
+            acc2 = av.fma(FloatVector.fromArray(SPECIES, b, b2 + i), acc2);
+            acc3 = av.fma(FloatVector.fromArray(SPECIES, b, b3 + i), acc3);
+        }
+        float sum0 = acc0.reduceLanes(VectorOperators.ADD);
+        float sum1 = acc1.reduceLanes(VectorOperators.ADD);
+        float sum2 = acc2.reduceLanes(VectorOperators.ADD);
+        float sum3 = acc3.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            float av = a[aOffset + i];
+            sum0 += av * b[bOffset + i];
+            sum1 += av * b[b1 + i];
+            sum2 += av * b[b2 + i];
+            sum3 += av * b[b3 + i];
+        }
+        out[0] = sum0;
+        out[1] = sum1;
+        out[2] = sum2;
+        out[3] = sum3;
+    }
+
+    @Override
+    public float cosineSimilarity(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        // two-way unroll, each step already carries three accumulators
+        FloatVector dot0 = FloatVector.zero(SPECIES);
+        FloatVector dot1 = FloatVector.zero(SPECIES);
+        FloatVector normA0 = FloatVector.zero(SPECIES);
+        FloatVector normA1 = FloatVector.zero(SPECIES);
+        FloatVector normB0 = FloatVector.zero(SPECIES);
+        FloatVector normB1 = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (; i + 2 * WIDTH <= length; i += 2 * WIDTH) {
+            FloatVector a0 = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            FloatVector b0 = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            FloatVector a1 = FloatVector.fromArray(SPECIES, a, aOffset + i + WIDTH);
+            FloatVector b1 = FloatVector.fromArray(SPECIES, b, bOffset + i + WIDTH);
+            dot0 = a0.fma(b0, dot0);
+            dot1 = a1.fma(b1, dot1);
+            normA0 = a0.fma(a0, normA0);
+            normA1 = a1.fma(a1, normA1);
+            normB0 = b0.fma(b0, normB0);
+            normB1 = b1.fma(b1, normB1);
+        }
+        for (; i + WIDTH <= length; i += WIDTH) {
+            FloatVector a0 = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            FloatVector b0 = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            dot0 = a0.fma(b0, dot0);
+            normA0 = a0.fma(a0, normA0);
+            normB0 = b0.fma(b0, normB0);
+        }
+        float dot = dot0.add(dot1).reduceLanes(VectorOperators.ADD);
+        float normA = normA0.add(normA1).reduceLanes(VectorOperators.ADD);
+        float normB = normB0.add(normB1).reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            float av = a[aOffset + i], bv = b[bOffset + i];
+            dot += av * bv;
+            normA += av * av;
+            normB += bv * bv;
+        }
+        return ScalarVectorKernels.cosine(dot, normA, normB);
+    }
+}
@@ -0,0 +1,142 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+// bounded max-heap that keeps the k smallest distances seen so far
+// distances and slots live in primitive arrays so a scan allocates nothing per candidate
+public class TopKSelector {
+    private final int k;
+    private final float[] distances;
+    private final int[] slots;
+    private int size;
+
+    public TopKSelector(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        this.distances = new float[k];
+        this.slots = new int[k];
+        this.size = 0;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return k;
+    }
+
+    public boolean isFull() {
+        return size == k;
+    }
+
+    // worst distance currently kept, candidates at or above it cannot enter a full heap
+    public float threshold() {
+        return size == k ? distances[0] : Float.POSITIVE_INFINITY;
+    }
+
+    // returns true if the candidate was kept
+    public boolean offer(int slot, float distance) {
+        if (size < k) {
+            distances[size] = distance;
+            slots[size] = slot;
+            siftUp(size);
+            size++;
+            return true;
+        }
+        if (distance >= distances[0]) {
+            return false;
+        }
+        distances[0] = distance;
+        slots[0] = slot;
+        siftDown(0, size);
+        return true;
+    }
+
+    // fold another selector's entries into this one (used to combine partial scans)
+    public void merge(TopKSelector other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.slots[i], other.distances[i]);
+        }
+    }
+
+    // heap-sort in place so that slot(0)/distance(0) is the nearest candidate
+    // the selector must be reset before offering again
+    public int sort() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        return size;
+    }
+
+    public int slot(int i) {
+        return slots[i];
+    }
+
+    public float distance(int i) {
+        return distances[i];
+    }
+
+    // sort and materialize the kept candidates, ids are resolved only for the k survivors
+    public List<QueryResult> toResults(IntFunction<String> idLookup) {
+        return toResults(idLookup, Metric.L2_SQUARED);
+    }
+
+    // same as above, converting the ranking scores into the metric's reported distance
+    public List<QueryResult> toResults(IntFunction<String> idLookup, Metric metric) {
+        int n = sort();
+        List<QueryResult> results = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            results.add(new QueryResult(idLookup.apply(slots[i]), metric.toDistance(distances[i])));
+        }
+        return results;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (distances[i] <= distances[parent]) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int limit) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= limit) {
+                break;
+            }
+            int largest = left;
+            int right = left + 1;
+            if (right < limit && distances[right] > distances[left]) {
+                largest = right;
+            }
+            if (distances[i] >= distances[largest]) {
+                break;
+            }
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        float d = distances[a];
+        distances[a] = distances[b];
+        distances[b] = d;
+        int s = slots[a];
+        slots[a] = slots[b];
+        slots[b] = s;
+    }
+}
@@ -3,15 +3,33 @@ package core;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
-public interface VectorIndex {
+public interface VectorIndex extends AutoCloseable {
     void build(List<Vector> vectors);
     int size();
-    List<QueryResult> search(float[] query, int k, String dataset);
+    List<QueryResult> search(float[] query, int k);
+    // results are in the same order as queries
+    List<List<QueryResult>> searchBatch(float[][] queries, int k);
     long getDistanceCalculations();
     void resetDistanceCalculations();
     String getName();
+    Metric getMetric();
     void insert(Vector vector);
     void delete(String vectorId);
 
     void insertAsync(List<Vector> vectors);
-    CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset);}
+    CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k);
+
+    // the metric is bound when the index is created, dataset is only kept for older callers
+    default List<QueryResult> search(float[] query, int k, String dataset) {
+        return search(query, k);
+    }
+
+    default CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
+        return searchAsync(query, k);
+    }
+
+    // releases the threads, pooled searchers or mapped files an index holds, most indexes hold none
+    @Override
+    default void close() {
+    }
+}
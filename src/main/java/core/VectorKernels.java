@@ -0,0 +1,17 @@
+package core;
+
+// low-level distance kernels over float[] slices, picked once at startup by DistanceMetric
+interface VectorKernels {
+    String name();
+
+    float squaredEuclidean(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    float dotProduct(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    // dot products of a against the four consecutive length-float vectors of b starting at bOffset,
+    // written to out[0..3]. each slice of a is loaded once for all four, like one row of a GEMM tile
+    void dotProduct4(float[] a, int aOffset, float[] b, int bOffset, int length, float[] out);
+
+    // cosine similarity, 1 means same direction
+    float cosineSimilarity(float[] a, int aOffset, float[] b, int bOffset, int length);
+}
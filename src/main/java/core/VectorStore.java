@@ -0,0 +1,171 @@
+package core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// row-major vector storage: vectors are packed back to back in large float[] chunks
+// so a full scan is a linear sweep instead of chasing one float[] per vector.
+// slot -> id lives in a side array, id -> slot in a map so deletes don't need a scan.
+// a store created without keepVectors only does that slot bookkeeping, for callers that keep their own
+// per-slot payload (FlatIndex's SQ8 codes): chunk() and copyVector() are then not available
+public class VectorStore {
+    // 16384 vectors per chunk keeps each chunk well below the array size limit for any realistic dimension
+    public static final int CHUNK_SHIFT = 14;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_CHUNK_CAPACITY = 1024;
+
+    private final int dimension;
+    private final boolean keepVectors;
+    private float[][] chunks;
+    private String[] ids;
+    private final Map<String, Integer> slotById;
+    private int size;
+
+    public VectorStore(int dimension) {
+        this(dimension, INITIAL_CHUNK_CAPACITY);
+    }
+
+    public VectorStore(int dimension, int expectedSize) {
+        this(dimension, expectedSize, true);
+    }
+
+    public VectorStore(int dimension, int expectedSize, boolean keepVectors) {
+        if (dimension <= 0) {
+            throw new IllegalArgumentException("Dimension must be positive");
+        }
+        this.dimension = dimension;
+        this.keepVectors = keepVectors;
+        this.chunks = new float[0][];
+        this.ids = new String[Math.max(expectedSize, 16)];
+        this.slotById = new HashMap<>(Math.max(expectedSize, 16) * 4 / 3 + 1);
+        this.size = 0;
+        ensureCapacity(expectedSize);
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // append a vector, returns the slot it was written to
+    // an id that is already stored is overwritten in place
+    public int add(Vector vector) {
+        if (vector.dimensions() != dimension) {
+            throw new IllegalArgumentException("Expected dimension " + dimension + " but got " + vector.dimensions());
+        }
+        Integer existing = slotById.get(vector.id());
+        if (existing != null) {
+            if (keepVectors) {
+                System.arraycopy(vector.vector(), 0, chunks[existing >>> CHUNK_SHIFT], offset(existing), dimension);
+            }
+            return existing;
+        }
+        int slot = size;
+        ensureCapacity(slot + 1);
+        if (keepVectors) {
+            System.arraycopy(vector.vector(), 0, chunks[slot >>> CHUNK_SHIFT], offset(slot), dimension);
+        }
+        ids[slot] = vector.id();
+        slotById.put(vector.id(), slot);
+        size++;
+        return slot;
+    }
+
+    // remove by id, the last vector is moved into the freed slot to keep storage dense
+    public boolean remove(String id) {
+        Integer slot = slotById.remove(id);
+        if (slot == null) {
+            return false;
+        }
+        int last = size - 1;
+        if (slot != last) {
+            if (keepVectors) {
+                System.arraycopy(chunks[last >>> CHUNK_SHIFT], offset(last), chunks[slot >>> CHUNK_SHIFT], offset(slot), dimension);
+            }
+            ids[slot] = ids[last];
+            slotById.put(ids[slot], slot);
+        }
+        ids[last] = null;
+        size--;
+        return true;
+    }
+
+    public String id(int slot) {
+        return ids[slot];
+    }
+
+    public int slotOf(String id) {
+        Integer slot = slotById.get(id);
+        return slot == null ? -1 : slot;
+    }
+
+    // number of chunks currently holding vectors
+    public int chunkCount() {
+        return (size + CHUNK_MASK) >>> CHUNK_SHIFT;
+    }
+
+    // raw chunk array, vector for slot s starts at offset(s) in chunk(s >>> CHUNK_SHIFT)
+    public float[] chunk(int chunkIndex) {
+        return chunks[chunkIndex];
+    }
+
+    // number of live vectors in the given chunk
+    public int chunkLength(int chunkIndex) {
+        return Math.min(CHUNK_SIZE, size - (chunkIndex << CHUNK_SHIFT));
+    }
+
+    public int offset(int slot) {
+        return (slot & CHUNK_MASK) * dimension;
+    }
+
+    public float[] copyVector(int slot) {
+        int offset = offset(slot);
+        return Arrays.copyOfRange(chunks[slot >>> CHUNK_SHIFT], offset, offset + dimension);
+    }
+
+    // allocated bytes for vector payload and the id side array, excluding the id strings themselves
+    public long allocatedBytes() {
+        long bytes = 0;
+        for (float[] chunk : chunks) {
+            if (chunk != null) {
+                bytes += 16L + 4L * chunk.length;
+            }
+        }
+        bytes += 16L + 4L * ids.length;
+        return bytes;
+    }
+
+    public double bytesPerVector() {
+        return size == 0 ? 0 : (double) allocatedBytes() / size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(capacity, ids.length + (ids.length >> 1)));
+        }
+        if (!keepVectors) {
+            return;
+        }
+        int chunksNeeded = (capacity + CHUNK_MASK) >>> CHUNK_SHIFT;
+        if (chunksNeeded > chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunksNeeded);
+        }
+        // every chunk but the last is full, the last one grows geometrically up to CHUNK_SIZE vectors
+        for (int c = size >>> CHUNK_SHIFT; c < chunksNeeded; c++) {
+            int vectorsInChunk = Math.min(CHUNK_SIZE, capacity - (c << CHUNK_SHIFT));
+            int required = vectorsInChunk * dimension;
+            float[] chunk = chunks[c];
+            if (chunk == null) {
+                chunks[c] = new float[c + 1 < chunksNeeded ? CHUNK_SIZE * dimension : required];
+            } else if (chunk.length < required) {
+                int grown = Math.min(CHUNK_SIZE * dimension, Math.max(required, chunk.length * 2));
+                chunks[c] = Arrays.copyOf(chunk, grown);
+            }
+        }
+    }
+}
@@ -1,71 +1,375 @@
 package index.flat;
 
-import core.DistanceMetric;
+import core.DistanceCounter;
+import core.Metric;
 import core.QueryResult;
+import core.ScalarQuantizer;
+import core.TopKSelector;
 import core.Vector;
 import core.VectorIndex;
+import core.VectorStore;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class FlatIndex implements VectorIndex {
 
-    private List<Vector> vectors;
-    long distanceCalculations;
+    // vectors are packed into one contiguous store, created lazily once the dimension is known
+    private VectorStore store;
+    private final Metric metric;
+    private final DistanceCounter distanceCalculations = new DistanceCounter();
+
+    // parallel scan: the store is split into partitions, each scanned into its own top-k and merged
+    // smaller partitions aren't worth a task, the fork/join overhead would dominate the scan
+    private static final int MIN_PARTITION_SIZE = 1024;
+    private final int parallelism;
+    private final ForkJoinPool scanPool;
+
+    // batch search tiling: a block of DATA_BLOCK vectors (128 KB at 128 dims) is scored against
+    // a tile of QUERY_TILE queries before moving on, so every loaded block is reused across the tile
+    private static final int DATA_BLOCK = 256;
+    private static final int QUERY_TILE = 32;
+
+    // optional SQ8 tier: scans read one byte per dimension from codeChunks, laid out slot for slot like
+    // the store's chunks would be. the store then only tracks ids and slots, no floats are copied: with
+    // re-ranking the best k * rerankFactor candidates are re-scored against the caller's arrays in originals
+    private boolean scalarQuantized;
+    private int rerankFactor;
+    private ScalarQuantizer quantizer;
+    private byte[][] codeChunks;
+    private float[][] originals;
+
+    public FlatIndex(Metric metric, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.store = null;
+        this.metric = metric;
+        this.parallelism = parallelism;
+        this.scanPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    public FlatIndex(Metric metric) {
+        this(metric, 1);
+    }
 
     public FlatIndex() {
-        this.vectors = new ArrayList<>();
-        this.distanceCalculations = 0;
+        this(Metric.L2);
+    }
+
+    // switch the scan to SQ8 codes, rerankFactor 0 returns the approximate ranking as is.
+    // must be called before build, the quantizer ranges are trained on the build vectors
+    public FlatIndex withScalarQuantization(int rerankFactor) {
+        if (store != null) {
+            throw new IllegalStateException("Scalar quantization must be enabled before build");
+        }
+        if (rerankFactor < 0) {
+            throw new IllegalArgumentException("rerankFactor must not be negative");
+        }
+        this.scalarQuantized = true;
+        this.rerankFactor = rerankFactor;
+        return this;
     }
 
     @Override
     public void build(List<Vector> vectors) {
-        this.vectors = new ArrayList<>(vectors);
+        // nothing to take the dimension from, the store is created by the first insert instead
+        if (vectors.isEmpty()) {
+            if (scalarQuantized) {
+                throw new IllegalArgumentException("SQ8 index needs at least one vector to train on");
+            }
+            this.store = null;
+            return;
+        }
+        this.store = new VectorStore(vectors.get(0).dimensions(), vectors.size(), !scalarQuantized);
+        if (scalarQuantized) {
+            quantizer = ScalarQuantizer.train(vectors);
+            codeChunks = new byte[0][];
+            originals = rerankFactor > 0 ? new float[vectors.size()][] : null;
+            for (Vector vector : vectors) {
+                addQuantized(vector);
+            }
+            System.out.printf("SQ8 codes: %.1f bytes/vector, ids: %.1f bytes/vector\n", codeBytesPerVector(), store.bytesPerVector());
+            return;
+        }
+        for (Vector vector : vectors) {
+            store.add(vector);
+        }
+        System.out.printf("Flat store: %d vectors in %d chunks, %.1f bytes/vector\n",
+                store.size(), store.chunkCount(), store.bytesPerVector());
+    }
+
+    // a re-added id keeps its slot, its codes and original are overwritten
+    private void addQuantized(Vector vector) {
+        int slot = store.add(vector);
+        encode(slot, vector.vector());
+        if (originals != null) {
+            if (slot >= originals.length) {
+                originals = Arrays.copyOf(originals, Math.max(slot + 1, originals.length + (originals.length >> 1)));
+            }
+            originals[slot] = vector.vector();
+        }
+    }
+
+    // (re)encode a vector into the code chunks at slot
+    private void encode(int slot, float[] vector) {
+        int dimension = store.dimension();
+        int c = slot >>> VectorStore.CHUNK_SHIFT;
+        if (c >= codeChunks.length) {
+            codeChunks = Arrays.copyOf(codeChunks, c + 1);
+        }
+        // same growth rule as the float chunks: geometric up to a full chunk
+        int offset = store.offset(slot);
+        byte[] chunk = codeChunks[c];
+        if (chunk == null || chunk.length < offset + dimension) {
+            int length = chunk == null ? 0 : chunk.length;
+            int grown = Math.min(VectorStore.CHUNK_SIZE * dimension, Math.max(offset + dimension, Math.max(length * 2, 1024 * dimension)));
+            codeChunks[c] = chunk = chunk == null ? new byte[grown] : Arrays.copyOf(chunk, grown);
+        }
+        quantizer.encode(vector, chunk, offset);
+    }
+
+    public double codeBytesPerVector() {
+        if (codeChunks == null || store.size() == 0) {
+            return 0;
+        }
+        long bytes = quantizer.allocatedBytes();
+        for (byte[] chunk : codeChunks) {
+            bytes += chunk == null ? 0 : 16L + chunk.length;
+        }
+        return (double) bytes / store.size();
     }
 
     @Override
     public int size() {
-        return vectors.size();
+        return store == null ? 0 : store.size();
     }
 
     @Override
-    public List<QueryResult> search(float[] query, int k, String dataset) {
-        List<QueryResult> result = new ArrayList<>();
-        for (Vector vector : vectors) {
-            float distance = new DistanceMetric().calculateDistance(query, vector.vector(), dataset);
-            distanceCalculations++;
-            QueryResult queryResult = new QueryResult(vector.id(), distance);
-            result.add(queryResult);
+    public List<QueryResult> search(float[] query, int k) {
+        if (store == null) {
+            return new ArrayList<>();
+        }
+        int size = store.size();
+        int partitions = Math.min(parallelism, size / MIN_PARTITION_SIZE);
+        int candidates = candidateCount(k);
+        ScalarQuantizer.Scorer scorer = quantizer == null ? null : quantizer.scorer(query, metric);
+        TopKSelector topK = new TopKSelector(candidates);
+        if (partitions <= 1) {
+            scanRange(query, scorer, 0, size, topK);
+        } else {
+            List<ForkJoinTask<TopKSelector>> tasks = new ArrayList<>(partitions);
+            for (int p = 0; p < partitions; p++) {
+                int from = (int) ((long) size * p / partitions);
+                int to = (int) ((long) size * (p + 1) / partitions);
+                tasks.add(scanPool.submit(() -> {
+                    TopKSelector partial = new TopKSelector(candidates);
+                    scanRange(query, scorer, from, to, partial);
+                    return partial;
+                }));
+            }
+            for (ForkJoinTask<TopKSelector> task : tasks) {
+                topK.merge(task.join());
+            }
+        }
+        distanceCalculations.add(size);
+        return toResults(query, topK, k);
+    }
+
+    // SQ8 scans keep k * rerankFactor candidates for the re-rank, everything else keeps k
+    private int candidateCount(int k) {
+        return quantizer != null && rerankFactor > 0 ? k * rerankFactor : k;
+    }
+
+    // re-scores SQ8 candidates against the original vectors when re-ranking is on
+    private List<QueryResult> toResults(float[] query, TopKSelector candidates, int k) {
+        if (originals == null) {
+            return candidates.toResults(store::id, metric);
+        }
+        TopKSelector topK = new TopKSelector(k);
+        int n = candidates.size();
+        for (int i = 0; i < n; i++) {
+            int slot = candidates.slot(i);
+            topK.offer(slot, metric.score(query, originals[slot], 0));
+        }
+        distanceCalculations.add(n);
+        return topK.toResults(store::id, metric);
+    }
+
+    // linear sweep over slots [from, to), one vector every `dimension` floats (or SQ8 bytes) within a chunk
+    private void scanRange(float[] query, ScalarQuantizer.Scorer scorer, int from, int to, TopKSelector topK) {
+        int dimension = store.dimension();
+        int slot = from;
+        if (scorer != null) {
+            while (slot < to) {
+                int c = slot >>> VectorStore.CHUNK_SHIFT;
+                byte[] chunk = codeChunks[c];
+                int chunkEnd = Math.min(to, (c + 1) << VectorStore.CHUNK_SHIFT);
+                for (int offset = store.offset(slot); slot < chunkEnd; slot++, offset += dimension) {
+                    topK.offer(slot, scorer.score(chunk, offset));
+                }
+            }
+            return;
+        }
+        while (slot < to) {
+            int c = slot >>> VectorStore.CHUNK_SHIFT;
+            float[] chunk = store.chunk(c);
+            int chunkEnd = Math.min(to, (c + 1) << VectorStore.CHUNK_SHIFT);
+            for (int offset = store.offset(slot); slot < chunkEnd; slot++, offset += dimension) {
+                topK.offer(slot, metric.score(query, chunk, offset));
+            }
         }
-        Collections.sort(result);
-        return result.subList(0, Math.min(k, result.size()));
+    }
+
+    @Override
+    public List<List<QueryResult>> searchBatch(float[][] queries, int k) {
+        List<List<QueryResult>> results = new ArrayList<>(queries.length);
+        if (store == null) {
+            for (int q = 0; q < queries.length; q++) {
+                results.add(new ArrayList<>());
+            }
+            return results;
+        }
+        TopKSelector[] topK = new TopKSelector[queries.length];
+        ScalarQuantizer.Scorer[] scorers = quantizer == null ? null : new ScalarQuantizer.Scorer[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            topK[q] = new TopKSelector(candidateCount(k));
+            if (scorers != null) {
+                scorers[q] = quantizer.scorer(queries[q], metric);
+            }
+        }
+
+        // query tiles are independent, so the parallel mode hands out tiles rather than data partitions
+        if (scanPool == null || queries.length <= QUERY_TILE) {
+            for (int tileStart = 0; tileStart < queries.length; tileStart += QUERY_TILE) {
+                scanTile(queries, scorers, tileStart, Math.min(queries.length, tileStart + QUERY_TILE), topK);
+            }
+        } else {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int tileStart = 0; tileStart < queries.length; tileStart += QUERY_TILE) {
+                int from = tileStart;
+                int to = Math.min(queries.length, tileStart + QUERY_TILE);
+                tasks.add(scanPool.submit(() -> scanTile(queries, scorers, from, to, topK)));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+        distanceCalculations.add((long) store.size() * queries.length);
+
+        for (int q = 0; q < queries.length; q++) {
+            results.add(toResults(queries[q], topK[q], k));
+        }
+        return results;
+    }
+
+    // score every data block against queries [from, to) before moving to the next block
+    private void scanTile(float[][] queries, ScalarQuantizer.Scorer[] scorers, int from, int to, TopKSelector[] topK) {
+        int dimension = store.dimension();
+        int size = store.size();
+        for (int blockStart = 0; blockStart < size; blockStart += DATA_BLOCK) {
+            int c = blockStart >>> VectorStore.CHUNK_SHIFT;
+            // CHUNK_SIZE is a multiple of DATA_BLOCK, so a block never straddles two chunks
+            int blockEnd = Math.min(size, blockStart + DATA_BLOCK);
+            int blockOffset = store.offset(blockStart);
+            if (scorers != null) {
+                byte[] codes = codeChunks[c];
+                for (int q = from; q < to; q++) {
+                    ScalarQuantizer.Scorer scorer = scorers[q];
+                    TopKSelector queryTopK = topK[q];
+                    for (int slot = blockStart, offset = blockOffset; slot < blockEnd; slot++, offset += dimension) {
+                        queryTopK.offer(slot, scorer.score(codes, offset));
+                    }
+                }
+                continue;
+            }
+            float[] chunk = store.chunk(c);
+            for (int q = from; q < to; q++) {
+                float[] query = queries[q];
+                TopKSelector queryTopK = topK[q];
+                for (int slot = blockStart, offset = blockOffset; slot < blockEnd; slot++, offset += dimension) {
+                    queryTopK.offer(slot, metric.score(query, chunk, offset));
+                }
+            }
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
     }
 
     @Override
     public long getDistanceCalculations() {
-        return distanceCalculations;
+        return distanceCalculations.get();
     }
 
     @Override
     public void resetDistanceCalculations() {
-        this.distanceCalculations = 0;
+        distanceCalculations.reset();
     }
 
     @Override
     public String getName() {
-        return "FLAT";
+        String name = "FLAT";
+        if (scalarQuantized) {
+            name += rerankFactor > 0 ? " SQ8 (rerank x" + rerankFactor + ")" : " SQ8";
+        }
+        return parallelism > 1 ? name + " (" + parallelism + " threads)" : name;
+    }
+
+    @Override
+    public Metric getMetric() {
+        return metric;
     }
 
     @Override
     public void insert(Vector vector) {
-        vectors.add(vector);
+        if (store == null) {
+            if (scalarQuantized) {
+                throw new IllegalStateException("SQ8 index must be built before inserting");
+            }
+            store = new VectorStore(vector.dimensions());
+        }
+        if (quantizer != null) {
+            addQuantized(vector);
+        } else {
+            store.add(vector);
+        }
     }
 
     @Override
     public void delete(String vectorId) {
-        vectors.removeIf(vector -> vector.id().equals(vectorId));
+        if (store == null) {
+            return;
+        }
+        int slot = store.slotOf(vectorId);
+        int last = store.size() - 1;
+        if (!store.remove(vectorId) || quantizer == null) {
+            return;
+        }
+        if (slot != last) {
+            // the store moved its last id into the freed slot, move the codes and original the same way
+            System.arraycopy(codeChunks[last >>> VectorStore.CHUNK_SHIFT], store.offset(last),
+                    codeChunks[slot >>> VectorStore.CHUNK_SHIFT], store.offset(slot), store.dimension());
+            if (originals != null) {
+                originals[slot] = originals[last];
+            }
+        }
+        if (originals != null) {
+            originals[last] = null;
+        }
+    }
+
+    // stops the parallel scan pool, parallel searches are rejected afterwards
+    @Override
+    public void close() {
+        if (scanPool != null) {
+            scanPool.shutdown();
+        }
     }
 
     @Override
@@ -74,7 +378,7 @@ public class FlatIndex implements VectorIndex {
     }
 
     @Override
-    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
+    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k) {
         return null;
     }
 }
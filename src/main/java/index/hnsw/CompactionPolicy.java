@@ -0,0 +1,22 @@
+package index.hnsw;
+
+// when JVectorHNSWIndex's background compactor removes soft-deleted nodes from the graph: once
+// deletedFraction of all nodes still in the graph are deleted, or once writes have been idle for
+// idleMillis with anything deleted at all (idleMillis <= 0 turns the idle trigger off).
+// minIntervalMillis rate limits both triggers, so heavy churn can't lock the graph for compaction back to back
+public record CompactionPolicy(double deletedFraction, long minIntervalMillis, long idleMillis) {
+
+    public CompactionPolicy {
+        if (!(deletedFraction > 0 && deletedFraction <= 1)) {
+            throw new IllegalArgumentException("deletedFraction must be in (0, 1]");
+        }
+        if (minIntervalMillis < 0) {
+            throw new IllegalArgumentException("minIntervalMillis must not be negative");
+        }
+    }
+
+    // compact at 10% deleted, at most once a second, or after 5 idle seconds
+    public static CompactionPolicy defaults() {
+        return new CompactionPolicy(0.1, 1000, 5000);
+    }
+}
@@ -0,0 +1,74 @@
+package index.hnsw;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// growable node id -> value array that any number of threads can read and write at once.
+// values live in fixed size chunks, so growing never copies or moves them: only the small chunk
+// directory is replaced, under a lock taken once per new chunk. reads take no lock and
+// every set is a volatile write, so a value is fully visible to a reader that finds its node id
+final class ConcurrentNodeArray<T> {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile AtomicReferenceArray<AtomicReferenceArray<T>> chunks;
+    // one past the highest node id ever set
+    private final AtomicInteger size = new AtomicInteger();
+
+    ConcurrentNodeArray(int initialCapacity) {
+        this.chunks = new AtomicReferenceArray<>(Math.max(1, (initialCapacity + CHUNK_MASK) >>> CHUNK_BITS));
+    }
+
+    // null if the node id was never set (or has been cleared)
+    T get(int node) {
+        AtomicReferenceArray<AtomicReferenceArray<T>> directory = chunks;
+        int chunk = node >>> CHUNK_BITS;
+        if (chunk >= directory.length()) {
+            return null;
+        }
+        AtomicReferenceArray<T> values = directory.get(chunk);
+        return values == null ? null : values.get(node & CHUNK_MASK);
+    }
+
+    void set(int node, T value) {
+        chunkFor(node).set(node & CHUNK_MASK, value);
+        size.accumulateAndGet(node + 1, Math::max);
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    private AtomicReferenceArray<T> chunkFor(int node) {
+        int chunk = node >>> CHUNK_BITS;
+        AtomicReferenceArray<AtomicReferenceArray<T>> directory = chunks;
+        if (chunk < directory.length()) {
+            AtomicReferenceArray<T> values = directory.get(chunk);
+            if (values != null) {
+                return values;
+            }
+        }
+        return addChunk(chunk);
+    }
+
+    // chunks are only installed (and the directory only replaced) under this lock, so a chunk added while
+    // the directory is being copied can't end up in the old directory only. happens once per CHUNK_SIZE ids
+    private synchronized AtomicReferenceArray<T> addChunk(int chunk) {
+        AtomicReferenceArray<AtomicReferenceArray<T>> directory = chunks;
+        if (chunk >= directory.length()) {
+            AtomicReferenceArray<AtomicReferenceArray<T>> grown = new AtomicReferenceArray<>(Math.max(chunk + 1, directory.length() * 2));
+            for (int i = 0; i < directory.length(); i++) {
+                grown.set(i, directory.get(i));
+            }
+            chunks = grown;
+            directory = grown;
+        }
+        AtomicReferenceArray<T> values = directory.get(chunk);
+        if (values == null) {
+            values = new AtomicReferenceArray<>(CHUNK_SIZE);
+            directory.set(chunk, values);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,43 @@
+package index.hnsw;
+
+import core.DistanceCounter;
+
+import io.github.jbellis.jvector.graph.similarity.BuildScoreProvider;
+import io.github.jbellis.jvector.graph.similarity.SearchScoreProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+// counts the similarities graph construction (inserts and cleanup) computes, from any number of threads
+final class CountingBuildScoreProvider implements BuildScoreProvider {
+    private final BuildScoreProvider delegate;
+    private final DistanceCounter distanceCalculations;
+
+    CountingBuildScoreProvider(BuildScoreProvider delegate, DistanceCounter distanceCalculations) {
+        this.delegate = delegate;
+        this.distanceCalculations = distanceCalculations;
+    }
+
+    @Override
+    public boolean isExact() {
+        return delegate.isExact();
+    }
+
+    @Override
+    public VectorFloat<?> approximateCentroid() {
+        return delegate.approximateCentroid();
+    }
+
+    @Override
+    public SearchScoreProvider searchProviderFor(VectorFloat<?> vector) {
+        return new CountingScoreProvider(delegate.searchProviderFor(vector), distanceCalculations);
+    }
+
+    @Override
+    public SearchScoreProvider searchProviderFor(int node) {
+        return new CountingScoreProvider(delegate.searchProviderFor(node), distanceCalculations);
+    }
+
+    @Override
+    public SearchScoreProvider diversityProviderFor(int node) {
+        return new CountingScoreProvider(delegate.diversityProviderFor(node), distanceCalculations);
+    }
+}
@@ -0,0 +1,88 @@
+package index.hnsw;
+
+import core.DistanceCounter;
+
+import io.github.jbellis.jvector.graph.similarity.ScoreFunction;
+import io.github.jbellis.jvector.graph.similarity.SearchScoreProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+// counts every similarity a search score provider computes, graph hops and rerank alike. a search uses
+// its provider on one thread only, so by default the count is a plain field the searching thread adds
+// to the index total once per query. providers handed to the graph builder pass the shared DistanceCounter
+// instead, since the builder drops them without telling anyone
+final class CountingScoreProvider implements SearchScoreProvider {
+    private final CountingScoreFunction scoreFunction;
+    private final CountingScoreFunction reranker;
+
+    CountingScoreProvider(SearchScoreProvider delegate) {
+        this(delegate, null);
+    }
+
+    CountingScoreProvider(SearchScoreProvider delegate, DistanceCounter sharedCount) {
+        this.scoreFunction = new CountingScoreFunction(delegate.scoreFunction(), sharedCount);
+        this.reranker = delegate.reranker() == null ? null : new CountingScoreFunction(delegate.reranker(), sharedCount);
+    }
+
+    @Override
+    public ScoreFunction scoreFunction() {
+        return scoreFunction;
+    }
+
+    @Override
+    public ScoreFunction.ExactScoreFunction reranker() {
+        return reranker;
+    }
+
+    @Override
+    public ScoreFunction.ExactScoreFunction exactScoreFunction() {
+        return scoreFunction.isExact() ? scoreFunction : reranker;
+    }
+
+    long getDistanceCalculations() {
+        return scoreFunction.count + (reranker != null ? reranker.count : 0);
+    }
+
+    // declared exact so it can stand in for either kind, isExact() answers for the delegate
+    private static final class CountingScoreFunction implements ScoreFunction.ExactScoreFunction {
+        private final ScoreFunction delegate;
+        private final DistanceCounter sharedCount;
+        private long count;
+
+        CountingScoreFunction(ScoreFunction delegate, DistanceCounter sharedCount) {
+            this.delegate = delegate;
+            this.sharedCount = sharedCount;
+        }
+
+        @Override
+        public boolean isExact() {
+            return delegate.isExact();
+        }
+
+        @Override
+        public float similarityTo(int node) {
+            add(1);
+            return delegate.similarityTo(node);
+        }
+
+        // scores a node's whole neighbour list in one call
+        @Override
+        public VectorFloat<?> edgeLoadingSimilarityTo(int node) {
+            VectorFloat<?> similarities = delegate.edgeLoadingSimilarityTo(node);
+            add(similarities.length());
+            return similarities;
+        }
+
+        @Override
+        public boolean supportsEdgeLoadingSimilarity() {
+            return delegate.supportsEdgeLoadingSimilarity();
+        }
+
+        private void add(int n) {
+            if (sharedCount != null) {
+                sharedCount.add(n);
+            } else {
+                count += n;
+            }
+        }
+    }
+}
@@ -1,20 +1,46 @@
 package index.hnsw;
 
+import benchmark.CompactionMetrics;
+import core.DistanceCounter;
+import core.Metric;
 import core.QueryResult;
 import core.Vector;
 import core.VectorIndex;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
 
+import io.github.jbellis.jvector.disk.RandomAccessReader;
+import io.github.jbellis.jvector.disk.ReaderSupplier;
+import io.github.jbellis.jvector.disk.ReaderSupplierFactory;
 import io.github.jbellis.jvector.graph.*;
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
 import io.github.jbellis.jvector.graph.similarity.BuildScoreProvider;
+import io.github.jbellis.jvector.graph.similarity.DefaultSearchScoreProvider;
 import io.github.jbellis.jvector.graph.similarity.SearchScoreProvider;
+import io.github.jbellis.jvector.quantization.MutablePQVectors;
+import io.github.jbellis.jvector.quantization.PQVectors;
+import io.github.jbellis.jvector.quantization.ProductQuantization;
 import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
 import io.github.jbellis.jvector.vector.VectorizationProvider;
 import io.github.jbellis.jvector.vector.types.VectorFloat;
@@ -25,67 +51,166 @@ public class JVectorHNSWIndex implements VectorIndex {
     private final int m;
     private final int efConstruction;
     private int efSearch;
+    private final Metric metric;
 
     private GraphIndexBuilder builder;
-    private ArrayList<Vector> vectors;
-    private ArrayList<VectorFloat<?>> jvectorVectors;
-    private HashMap<String, Integer> idToNodeMap;
+    // node id -> id and node id -> vector, written by concurrent inserts and read by searches without locking.
+    // the VectorFloats wrap the callers' float[] without copying, so the index holds no second copy of
+    // the data (and callers must not modify a vector once indexed)
+    private ConcurrentNodeArray<String> ids;
+    private ConcurrentNodeArray<VectorFloat<?>> jvectorVectors;
+    private Map<String, Integer> idToNodeMap;
 
     private RandomAccessVectorValues ravv;
     private BuildScoreProvider bsp;
     private int dimension;
-    private long distanceCalculations = 0;
+    // similarities computed by searches and graph construction, and nodes the searches visited. searches
+    // count into their own provider and add the total once per query, so concurrent queries don't share
+    // a hot counter on every hop
+    private final DistanceCounter distanceCalculations = new DistanceCounter();
+    private final LongAdder visitedNodes = new LongAdder();
 
     private final AtomicInteger nextNodeId = new AtomicInteger(0);
     private final AtomicInteger softDeleteCount = new AtomicInteger(0);
     private final AtomicInteger liveNodeCount = new AtomicInteger(0);
     private final ExecutorService insertExecutor;
 
-    public JVectorHNSWIndex(int m, int efConstruction, int efSearch, ExecutorService insertExecutor) {
+    // inserts and deletes run concurrently with each other and with searches, they only share the read side.
+    // removing deleted nodes (cleanup, save) rewrites neighbour lists and is exclusive. searches take an
+    // optimistic stamp instead of a lock and only retry under the read lock if a cleanup overlapped them
+    private final StampedLock structureLock = new StampedLock();
+
+    // deletes that arrive while a compaction holds the graph exclusively don't wait for it: the id is
+    // unmapped right away and the node queued, and marked deleted in the graph once the compaction is done.
+    // while any are unmarked, searches drop results whose id no longer maps to their node
+    private final Queue<Integer> deferredDeletes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger unmarkedDeletes = new AtomicInteger();
+
+    // marked nodes wait in removableNodes for the next compaction, which releases their vector and id and
+    // moves the node id to freeNodeIds. inserts take ids from there before growing nextNodeId, so under
+    // delete/insert churn the stores, the graph and the PQ codes stay at the size of the live set
+    private final Queue<Integer> removableNodes = new ConcurrentLinkedQueue<>();
+    private final Queue<Integer> freeNodeIds = new ConcurrentLinkedQueue<>();
+
+    // optional background compaction, see CompactionPolicy. without it the deleting thread compacts
+    // inline once 5000 deletes have piled up
+    private static final long COMPACTION_CHECK_MILLIS = 50;
+    private CompactionPolicy compactionPolicy;
+    private ScheduledExecutorService compactor;
+    private volatile long lastWriteNanos;
+    private volatile long lastCompactionNanos;
+    // only written by the thread holding the write lock
+    private volatile long compactions;
+    private volatile long compactionNanos;
+    private volatile long maxCompactionNanos;
+    private volatile long lastCompactionDurationNanos;
+    private volatile long freedBytes;
+
+    // optional PQ traversal: every hop is scored against pqSubspaces-byte codes through a per-query
+    // lookup table instead of the full floats, and the best max(efSearch, k * rerankFactor) candidates
+    // are re-scored exactly at the end (rerankFactor 0 returns the approximate ranking as is).
+    // the graph itself is still built with exact scores
+    private static final int PQ_CLUSTERS = 256;
+    private int pqSubspaces;
+    private int rerankFactor;
+    private PQVectors pqVectors;
+
+    // set by load: searches run on the memory-mapped graph (vectors stored inline) and node ids
+    // resolve through diskIds. a loaded index is read-only
+    private ReaderSupplier readerSupplier;
+    private OnDiskGraphIndex diskGraph;
+    private List<String> diskIds;
+
+    // every searching thread keeps a GraphSearcher (visited set, candidate heaps) and a query buffer and
+    // reuses them across calls. a searcher's view only sees the graph as of its creation, so every
+    // mutation bumps graphVersion and a context whose version is behind takes a fresh view first.
+    // the per-thread cache is static and weakly keyed by index, and nothing a context holds (searcher,
+    // graph, the last score provider) refers back to the index, so an index nobody references is collected
+    // even while the threads that searched it live on. their stale contexts go on the thread's next lookup
+    private static final ThreadLocal<Map<JVectorHNSWIndex, SearchContext>> SEARCH_CONTEXTS =
+            ThreadLocal.withInitial(WeakHashMap::new);
+    private boolean pooledSearchers = true;
+    private final AtomicLong graphVersion = new AtomicLong();
+
+    public JVectorHNSWIndex(int m, int efConstruction, int efSearch, ExecutorService insertExecutor, Metric metric) {
         this.m = m;
         this.efConstruction = efConstruction;
         this.efSearch = efSearch;
         this.insertExecutor = insertExecutor;
+        this.metric = metric;
+    }
+
+    public JVectorHNSWIndex(int m, int efConstruction, int efSearch, ExecutorService insertExecutor) {
+        this(m, efConstruction, efSearch, insertExecutor, Metric.L2);
     }
 
     public JVectorHNSWIndex(int m, int efConstruction, int efSearch) {
         this(m, efConstruction, efSearch, null);
     }
 
+    // false allocates a new searcher and query vector per search, kept to compare allocation rates
+    public JVectorHNSWIndex withPooledSearchers(boolean pooledSearchers) {
+        this.pooledSearchers = pooledSearchers;
+        return this;
+    }
+
+    // remove deleted nodes on a background thread instead of in the delete that crosses the limit,
+    // must be called before build. the thread stops with close()
+    public JVectorHNSWIndex withBackgroundCompaction(CompactionPolicy policy) {
+        if (builder != null || diskGraph != null) {
+            throw new IllegalStateException("Background compaction must be enabled before build");
+        }
+        this.compactionPolicy = policy;
+        return this;
+    }
+
+    // search over product-quantized codes, must be called before build.
+    // subspaces is the number of code bytes per vector, e.g. dimension / 4 or dimension / 8
+    public JVectorHNSWIndex withProductQuantization(int subspaces, int rerankFactor) {
+        if (builder != null || diskGraph != null) {
+            throw new IllegalStateException("Product quantization must be enabled before build or load");
+        }
+        if (subspaces <= 0) {
+            throw new IllegalArgumentException("subspaces must be positive");
+        }
+        if (rerankFactor < 0) {
+            throw new IllegalArgumentException("rerankFactor must not be negative");
+        }
+        this.pqSubspaces = subspaces;
+        this.rerankFactor = rerankFactor;
+        return this;
+    }
+
     @Override
     public void build(List<Vector> vectors) {
         System.out.println("Creating JVector HNSW index with M=" + m + ", efConstruction=" + efConstruction + ", efSearch=" + efSearch);
         System.out.println("Dataset size: " + vectors.size() + " vectors");
 
-        this.vectors = new ArrayList<>(vectors);
         this.dimension = vectors.get(0).dimensions();
         long startTime = System.currentTimeMillis();
 
-        // convert to vector float list
-        this.jvectorVectors = new ArrayList<>();
-        this.idToNodeMap = new HashMap<>();
+        // wrap each vector's array as a VectorFloat
+        this.ids = new ConcurrentNodeArray<>(vectors.size());
+        this.jvectorVectors = new ConcurrentNodeArray<>(vectors.size());
+        this.idToNodeMap = new ConcurrentHashMap<>(vectors.size() * 4 / 3 + 1);
         for (int i = 0; i < vectors.size(); i++) {
             Vector v = vectors.get(i);
-            VectorFloat<?> vf = vts.createFloatVector(v.dimensions());
-            for (int j = 0; j < v.dimensions(); j++) {
-                vf.set(j, v.vector()[j]);
-            }
-            jvectorVectors.add(vf);
+            ids.set(i, v.id());
+            jvectorVectors.set(i, vts.createFloatVector(v.vector()));
             idToNodeMap.put(v.id(), i);
         }
 
         // create ravv
-        int dimension = vectors.get(0).dimensions();
-        this.ravv = new ListRandomAccessVectorValues(jvectorVectors, dimension);
+        this.ravv = new NodeVectors(jvectorVectors, dimension);
 
         // build score provider
-        this.bsp = BuildScoreProvider.randomAccessScoreProvider(ravv, VectorSimilarityFunction.EUCLIDEAN);
+        this.bsp = BuildScoreProvider.randomAccessScoreProvider(ravv, similarityFunction());
 
         System.out.println("Index structure created, now adding vectors...");
 
         // build the graph
         this.builder = new GraphIndexBuilder(
-                bsp,
+                new CountingBuildScoreProvider(bsp, distanceCalculations),
                 dimension,
                 m,
                 efConstruction,
@@ -96,9 +221,24 @@ public class JVectorHNSWIndex implements VectorIndex {
         );
         builder.build(ravv);
 
+        if (pqSubspaces > 0) {
+            // centering only helps euclidean, it would distort dot product and cosine
+            ProductQuantization pq = ProductQuantization.compute(ravv, pqSubspaces, PQ_CLUSTERS,
+                    similarityFunction() == VectorSimilarityFunction.EUCLIDEAN);
+            MutablePQVectors codes = new MutablePQVectors(pq);
+            for (int i = 0; i < jvectorVectors.size(); i++) {
+                codes.encodeAndSet(i, jvectorVectors.get(i));
+            }
+            pqVectors = codes;
+            System.out.println("PQ codes: " + pq.compressedVectorSize() + " bytes/vector, codebooks: " + pq.ramBytesUsed() + " bytes");
+        }
+
         // Initialize counters after build
         this.nextNodeId.set(vectors.size());
         this.liveNodeCount.set(builder.getGraph().size(0));
+        if (compactionPolicy != null) {
+            startCompactor();
+        }
 
         long totalTime = System.currentTimeMillis() - startTime;
         System.out.printf("Build completed in %.2fs\n", totalTime / 1000.0);
@@ -109,71 +249,399 @@ public class JVectorHNSWIndex implements VectorIndex {
         return liveNodeCount.get();
     }
 
+    // each attempt counts into its own SearchCounts, only the attempt whose results are returned is published,
+    // so an optimistic search thrown away by a concurrent cleanup doesn't inflate the metrics
     @Override
-    public List<QueryResult> search(float[] query, int k, String dataset) {
+    public List<QueryResult> search(float[] query, int k) {
+        if (diskGraph != null) {
+            SearchCounts counts = new SearchCounts();
+            List<QueryResult> results = searchGraph(query, k, counts);
+            counts.publish();
+            return results;
+        }
+        long stamp = structureLock.tryOptimisticRead();
+        if (stamp != 0) {
+            SearchCounts counts = new SearchCounts();
+            try {
+                List<QueryResult> results = searchGraph(query, k, counts);
+                if (structureLock.validate(stamp)) {
+                    counts.publish();
+                    return results;
+                }
+            } catch (RuntimeException e) {
+                if (structureLock.validate(stamp)) {
+                    throw e;
+                }
+                // a cleanup removed nodes under the search, retried below
+            }
+        }
+        stamp = structureLock.readLock();
+        try {
+            SearchCounts counts = new SearchCounts();
+            List<QueryResult> results = searchGraph(query, k, counts);
+            counts.publish();
+            return results;
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    private final class SearchCounts {
+        long distanceCalculations;
+        long visitedNodes;
+
+        void publish() {
+            JVectorHNSWIndex.this.distanceCalculations.add(distanceCalculations);
+            JVectorHNSWIndex.this.visitedNodes.add(visitedNodes);
+        }
+    }
+
+    private List<QueryResult> searchGraph(float[] query, int k, SearchCounts counts) {
+        if (pooledSearchers) {
+            SearchContext context = SEARCH_CONTEXTS.get().computeIfAbsent(this, index -> new SearchContext());
+            context.refresh(this, query.length);
+            for (int i = 0; i < query.length; i++) {
+                context.query.set(i, query[i]);
+            }
+            return search(context.searcher, context.query, k, counts);
+        }
+
         // convert query to vector float
         VectorFloat<?> queryVector = vts.createFloatVector(query.length);
         for (int i = 0; i < query.length; i++) {
             queryVector.set(i, query[i]);
         }
+        try (GraphSearcher searcher = new GraphSearcher(currentGraph())) {
+            return search(searcher, queryVector, k, counts);
+        } catch (IOException e) {
+            throw new RuntimeException("Search failed", e);
+        }
+    }
 
-        try (GraphSearcher searcher = new GraphSearcher(builder.getGraph())) {
-            SearchScoreProvider ssp = bsp.searchProviderFor(queryVector);
-            SearchResult result = searcher.search(ssp, k, efSearch, 0.0F, 0.0F, builder.getGraph().getView().liveNodes());
+    private ImmutableGraphIndex currentGraph() {
+        return diskGraph != null ? diskGraph : builder.getGraph();
+    }
 
-            // convert to our format
-            List<QueryResult> results = new ArrayList<>();
-            for (SearchResult.NodeScore ns : result.getNodes()) {
-                String id = vectors.get(ns.node).id();
-                results.add(new QueryResult(id, ns.score));
+    private List<QueryResult> search(GraphSearcher searcher, VectorFloat<?> queryVector, int k, SearchCounts counts) {
+        // a mapped graph is scored against the vectors stored inline in the file, read through the searcher's own view
+        RandomAccessVectorValues exactVectors = diskGraph != null ? (RandomAccessVectorValues) searcher.getView() : ravv;
+        SearchScoreProvider ssp;
+        if (pqVectors != null) {
+            ssp = pqSearchProvider(queryVector, exactVectors);
+        } else if (diskGraph != null) {
+            ssp = DefaultSearchScoreProvider.exact(queryVector, similarityFunction(), exactVectors);
+        } else {
+            ssp = bsp.searchProviderFor(queryVector);
+        }
+        int rerankK = pqVectors != null ? Math.max(efSearch, k * rerankFactor) : efSearch;
+        CountingScoreProvider counted = new CountingScoreProvider(ssp);
+        SearchResult result = searcher.search(counted, k, rerankK, 0.0F, 0.0F, searcher.getView().liveNodes());
+        counts.distanceCalculations += counted.getDistanceCalculations();
+        counts.visitedNodes += result.getVisitedCount();
+
+        // convert to our format
+        boolean unmarked = unmarkedDeletes.get() > 0;
+        List<QueryResult> results = new ArrayList<>(result.getNodes().length);
+        for (SearchResult.NodeScore ns : result.getNodes()) {
+            String id = diskIds != null ? diskIds.get(ns.node) : ids.get(ns.node);
+            if (unmarked && !Integer.valueOf(ns.node).equals(idToNodeMap.get(id))) {
+                continue;
             }
-            return results;
-        } catch (IOException e) {
-            throw new RuntimeException("Search failed", e);
+            results.add(new QueryResult(id, ns.score));
+        }
+        return results;
+    }
+
+    // the graph reads vectors by node id while other threads are still adding nodes, so it reads the
+    // concurrent store directly. shared by all threads, the store is safe to read concurrently
+    // static so that score providers a pooled searcher keeps from its last search don't pin the index
+    private static final class NodeVectors implements RandomAccessVectorValues {
+        private final ConcurrentNodeArray<VectorFloat<?>> vectors;
+        private final int dimension;
+
+        NodeVectors(ConcurrentNodeArray<VectorFloat<?>> vectors, int dimension) {
+            this.vectors = vectors;
+            this.dimension = dimension;
+        }
+
+        @Override
+        public int size() {
+            return vectors.size();
+        }
+
+        @Override
+        public int dimension() {
+            return dimension;
+        }
+
+        @Override
+        public VectorFloat<?> getVector(int node) {
+            return vectors.get(node);
+        }
+
+        @Override
+        public boolean isValueShared() {
+            return false;
+        }
+
+        @Override
+        public RandomAccessVectorValues copy() {
+            return this;
+        }
+    }
+
+    // only ever used by the thread that owns it, so it needs no synchronization
+    private static final class SearchContext {
+        private GraphSearcher searcher;
+        private ImmutableGraphIndex graph;
+        private long version;
+        private VectorFloat<?> query;
+
+        void refresh(JVectorHNSWIndex index, int dimension) {
+            // read the version before taking the view, a mutation racing with this refresh bumps it again
+            long currentVersion = index.graphVersion.get();
+            ImmutableGraphIndex current = index.currentGraph();
+            if (searcher == null || graph != current) {
+                close();
+                searcher = new GraphSearcher(current);
+                graph = current;
+            } else if (version != currentVersion) {
+                searcher.setView(current.getView());
+            }
+            version = currentVersion;
+            if (query == null || query.length() != dimension) {
+                query = vts.createFloatVector(dimension);
+            }
+        }
+
+        void close() {
+            if (searcher != null) {
+                try {
+                    searcher.close();
+                } catch (IOException e) {
+                    throw new RuntimeException("Closing searcher failed", e);
+                }
+                searcher = null;
+            }
+        }
+    }
+
+    // ADC table built once per query, the exact reranker reads the full vectors only for the final candidates
+    private SearchScoreProvider pqSearchProvider(VectorFloat<?> queryVector, RandomAccessVectorValues exactVectors) {
+        var approximate = pqVectors.precomputedScoreFunctionFor(queryVector, similarityFunction());
+        if (rerankFactor == 0) {
+            return new DefaultSearchScoreProvider(approximate);
+        }
+        return new DefaultSearchScoreProvider(approximate, exactVectors.rerankerFor(queryVector, similarityFunction()));
+    }
+
+    // writes the graph in JVector's on-disk format with the vectors inline, plus the ids (path + ".ids")
+    // and in PQ mode the codes (path + ".pq"). pending deletes are cleaned up first and the surviving
+    // nodes renumbered densely, so the file only holds live nodes
+    public void save(Path path) throws IOException {
+        if (builder == null) {
+            throw new IllegalStateException("Only a built index can be saved");
+        }
+        // exclusive, so the file is a consistent snapshot of the graph
+        long stamp = structureLock.writeLock();
+        try {
+            write(path);
+        } finally {
+            structureLock.unlockWrite(stamp);
+        }
+        applyDeferredDeletes();
+    }
+
+    private void write(Path path) throws IOException {
+        if (softDeleteCount.get() > 0) {
+            removeDeletedNodes();
+        }
+        // repairing around removed nodes can leave neighbour lists over the max degree, which the
+        // on-disk format rejects. the builder's cleanup trims them (there is nothing left for it to remove)
+        builder.cleanup();
+        ImmutableGraphIndex graph = builder.getGraph();
+        int[] newToOld = new int[graph.size(0)];
+        Map<Integer, Integer> oldToNew = new HashMap<>();
+        NodesIterator nodes = graph.getNodes(0);
+        while (nodes.hasNext()) {
+            int node = nodes.nextInt();
+            oldToNew.put(node, oldToNew.size());
+        }
+        oldToNew.forEach((oldId, newId) -> newToOld[newId] = oldId);
+
+        OnDiskGraphIndex.write(graph, ravv, oldToNew, path);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(sidecar(path, ".ids"))))) {
+            out.writeUTF(metric.name());
+            out.writeInt(newToOld.length);
+            for (int oldId : newToOld) {
+                out.writeUTF(ids.get(oldId));
+            }
+        }
+        if (pqVectors != null) {
+            MutablePQVectors renumbered = new MutablePQVectors(pqVectors.getCompressor());
+            for (int newId = 0; newId < newToOld.length; newId++) {
+                renumbered.encodeAndSet(newId, jvectorVectors.get(newToOld[newId]));
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(sidecar(path, ".pq"))))) {
+                renumbered.write(out);
+            }
+        }
+        System.out.println("Saved " + newToOld.length + " nodes to " + path + " (" + Files.size(path) + " bytes)");
+    }
+
+    // serve searches straight from a file written by save. the graph and its vectors are memory-mapped
+    // and paged in on demand instead of rebuilt, only the ids (and PQ codes, if this index uses PQ) are
+    // read onto the heap. the loaded index is read-only, call close() to unmap it
+    public void load(Path path) throws IOException {
+        if (builder != null || diskGraph != null) {
+            throw new IllegalStateException("load needs an index that was neither built nor loaded");
         }
+        List<String> ids;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar(path, ".ids"))))) {
+            String savedMetric = in.readUTF();
+            if (!savedMetric.equals(metric.name())) {
+                throw new IllegalArgumentException("Index was saved with metric " + savedMetric + " but this index uses " + metric);
+            }
+            int count = in.readInt();
+            ids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ids.add(in.readUTF());
+            }
+        }
+        if (pqSubspaces > 0) {
+            Path pqPath = sidecar(path, ".pq");
+            if (!Files.exists(pqPath)) {
+                throw new IllegalArgumentException("No PQ codes saved next to " + path);
+            }
+            try (ReaderSupplier pqSupplier = ReaderSupplierFactory.open(pqPath);
+                 RandomAccessReader reader = pqSupplier.get()) {
+                pqVectors = PQVectors.load(reader);
+            }
+        }
+
+        readerSupplier = ReaderSupplierFactory.open(path);
+        diskGraph = OnDiskGraphIndex.load(readerSupplier);
+        diskIds = ids;
+        idToNodeMap = new ConcurrentHashMap<>(ids.size() * 4 / 3 + 1);
+        for (int i = 0; i < ids.size(); i++) {
+            idToNodeMap.put(ids.get(i), i);
+        }
+        dimension = diskGraph.getDimension();
+        nextNodeId.set(ids.size());
+        liveNodeCount.set(diskGraph.size(0));
+    }
+
+    // unmaps a loaded index, stops background compaction and releases the calling thread's pooled searcher.
+    // other threads may be mid-search on theirs, so they are left to go with the index
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdown();
+        }
+        SearchContext context = SEARCH_CONTEXTS.get().remove(this);
+        if (context != null) {
+            context.close();
+        }
+        if (diskGraph != null) {
+            try {
+                diskGraph.close();
+                readerSupplier.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Closing mapped graph failed", e);
+            }
+        }
+    }
+
+    private static Path sidecar(Path path, String suffix) {
+        return path.resolveSibling(path.getFileName() + suffix);
+    }
+
+    private void requireMutable() {
+        if (diskGraph != null) {
+            throw new UnsupportedOperationException("A loaded index is read-only, build it to apply updates");
+        }
+    }
+
+    // bytes per vector the graph traversal reads, the full floats are only touched by the rerank
+    public int getCompressedBytesPerVector() {
+        return pqVectors != null ? pqVectors.getCompressedSize() : dimension * Float.BYTES;
+    }
+
+    // graph search has no data to share between queries, so a batch just fans out over the executor
+    @Override
+    public List<List<QueryResult>> searchBatch(float[][] queries, int k) {
+        Executor executor = insertExecutor != null ? insertExecutor : ForkJoinPool.commonPool();
+        List<CompletableFuture<List<QueryResult>>> futures = new ArrayList<>(queries.length);
+        for (float[] query : queries) {
+            futures.add(CompletableFuture.supplyAsync(() -> search(query, k), executor));
+        }
+        return futures.stream().map(CompletableFuture::join).toList();
     }
 
     @Override
     public long getDistanceCalculations() {
-        return 0;
+        return distanceCalculations.get();
+    }
+
+    // nodes the searches scored since the last reset, as reported by JVector's SearchResult
+    public long getVisitedNodes() {
+        return visitedNodes.sum();
     }
 
     @Override
     public void resetDistanceCalculations() {
-        this.distanceCalculations = 0;
+        distanceCalculations.reset();
+        visitedNodes.reset();
     }
 
     @Override
     public String getName() {
-        return "JVector-HNSW";
+        String name = "JVector-HNSW";
+        if (pqSubspaces > 0) {
+            name += " PQ" + pqSubspaces + (rerankFactor > 0 ? " (rerank x" + rerankFactor + ")" : "");
+        }
+        return diskGraph != null ? name + " (mapped)" : name;
     }
 
-    /**
-     * Insert a single vector.
-     * WARNING: This method is NOT thread-safe for concurrent calls.
-     * For concurrent insertions, use insertAsync() with an executor.
-     */
+    @Override
+    public Metric getMetric() {
+        return metric;
+    }
+
+    // jvector ranks by similarity, both L2 flavours map to its euclidean similarity
+    private VectorSimilarityFunction similarityFunction() {
+        return switch (metric) {
+            case L2, L2_SQUARED -> VectorSimilarityFunction.EUCLIDEAN;
+            case COSINE -> VectorSimilarityFunction.COSINE;
+            case INNER_PRODUCT -> VectorSimilarityFunction.DOT_PRODUCT;
+        };
+    }
+
+    // safe to call from any number of threads, concurrently with searches and deletes. a node becomes
+    // visible to searches once it is linked into the graph, after its vector and id are stored.
+    // inserting an id that is already indexed replaces the old vector
     @Override
     public void insert(Vector vector) {
-        VectorFloat<?> vf = vts.createFloatVector(vector.dimensions());
-        for (int i = 0; i < vector.dimensions(); i++) {
-            vf.set(i, vector.vector()[i]);
+        requireMutable();
+        lastWriteNanos = System.nanoTime();
+        long stamp = structureLock.readLock();
+        try {
+            int nodeId = allocateNodeId();
+            VectorFloat<?> vf = store(nodeId, vector);
+            builder.addGraphNode(nodeId, vf);
+            publish(vector.id(), nodeId);
+        } finally {
+            structureLock.unlockRead(stamp);
         }
-
-        // Thread-safe operations with concurrent collections
-        int nodeId = nextNodeId.getAndIncrement();
-        vectors.add(vector);
-        jvectorVectors.add(vf);
-        idToNodeMap.put(vector.id(), nodeId);
-        builder.addGraphNode(nodeId, vf);
-        liveNodeCount.incrementAndGet();
+        cleanupIfNeeded();
     }
 
     // record to hold insertion data
-    private record InsertTask(int nodeId, VectorFloat<?> vf) {}
+    private record InsertTask(int nodeId, String id, VectorFloat<?> vf) {}
 
     @Override
     public void insertAsync(List<Vector> vectors) {
+        requireMutable();
         if (insertExecutor == null) {
             // Sequential fallback
             for (Vector v : vectors) {
@@ -182,68 +650,228 @@ public class JVectorHNSWIndex implements VectorIndex {
             return;
         }
 
-        // sequential preparation
-        List<InsertTask> tasks = new ArrayList<>(vectors.size());
-        for (Vector v : vectors) {
-            VectorFloat<?> vf = vts.createFloatVector(v.dimensions());
-            for (int i = 0; i < v.dimensions(); i++) {
-                vf.set(i,v.vector()[i]);
+        lastWriteNanos = System.nanoTime();
+        long stamp = structureLock.readLock();
+        try {
+            // sequential preparation
+            List<InsertTask> tasks = new ArrayList<>(vectors.size());
+            for (Vector v : vectors) {
+                int nodeId = allocateNodeId();
+                tasks.add(new InsertTask(nodeId, v.id(), store(nodeId, v)));
             }
+            // parallel graph insertion
+            List<CompletableFuture<Void>> futures = tasks.stream()
+                    .map(task -> CompletableFuture.runAsync(() -> {
+                        builder.addGraphNode(task.nodeId, task.vf);
+                        publish(task.id, task.nodeId);
+                    }, insertExecutor))
+                    .toList();
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+        cleanupIfNeeded();
+    }
+
+    private int allocateNodeId() {
+        Integer free = freeNodeIds.poll();
+        return free != null ? free : nextNodeId.getAndIncrement();
+    }
+
+    // the volatile writes into the node stores happen before the graph links the node, so a searcher
+    // that reaches the node always finds its vector, id and PQ code
+    private VectorFloat<?> store(int nodeId, Vector vector) {
+        VectorFloat<?> vf = vts.createFloatVector(vector.vector());
+        ids.set(nodeId, vector.id());
+        jvectorVectors.set(nodeId, vf);
+        if (pqVectors != null) {
+            ((MutablePQVectors) pqVectors).encodeAndSet(nodeId, vf);
+        }
+        liveNodeCount.incrementAndGet();
+        return vf;
+    }
 
-            // assign node id and update data structures
-            int nodeId = nextNodeId.getAndIncrement();
-            this.vectors.add(v);
-            this.jvectorVectors.add(vf);
-            idToNodeMap.put(v.id(),nodeId);
-            liveNodeCount.incrementAndGet();
-            tasks.add(new InsertTask(nodeId,vf));
+    // makes a linked node deletable by id. put hands back the node it replaces exactly once, so an upsert
+    // racing with a delete of the same id never deletes a node twice
+    private void publish(String id, int nodeId) {
+        Integer previous = idToNodeMap.put(id, nodeId);
+        if (previous != null) {
+            liveNodeCount.decrementAndGet();
+            markDeleted(previous);
         }
-        // parallel graph insertion
-        List<CompletableFuture<Void>> futures = tasks.stream()
-                .map(task -> CompletableFuture.runAsync(() -> builder.addGraphNode(task.nodeId, task.vf), insertExecutor))
-                .toList();
-        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        graphVersion.incrementAndGet();
     }
 
     @Override
-    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
+    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k) {
         if (insertExecutor == null) {
             // Fallback to synchronous execution wrapped in completed future
-            return CompletableFuture.completedFuture(search(query, k, dataset));
+            return CompletableFuture.completedFuture(search(query, k));
         }
-        return CompletableFuture.supplyAsync(() -> search(query, k, dataset), insertExecutor);
+        return CompletableFuture.supplyAsync(() -> search(query, k), insertExecutor);
     }
 
     @Override
     public void delete(String vectorId) {
-        Integer nodeId = idToNodeMap.get(vectorId);
+        requireMutable();
+        lastWriteNanos = System.nanoTime();
+        Integer nodeId = idToNodeMap.remove(vectorId);
         if (nodeId == null) return;
+        liveNodeCount.decrementAndGet();
 
+        long stamp = structureLock.tryReadLock();
+        if (stamp == 0) {
+            // a compaction holds the graph, leave the node to it instead of waiting
+            unmarkedDeletes.incrementAndGet();
+            deferredDeletes.add(nodeId);
+            // unless it finished (and applied the queue) before the node was queued
+            stamp = structureLock.tryReadLock();
+            if (stamp == 0) return;
+            try {
+                drainDeferredDeletes();
+            } finally {
+                structureLock.unlockRead(stamp);
+            }
+            return;
+        }
+        try {
+            markDeleted(nodeId);
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+        cleanupIfNeeded();
+    }
+
+    private void markDeleted(int nodeId) {
         builder.markNodeDeleted(nodeId);
+        removableNodes.add(nodeId);
+        graphVersion.incrementAndGet();
         softDeleteCount.incrementAndGet();
-        liveNodeCount.decrementAndGet();
+    }
+
+    private void applyDeferredDeletes() {
+        if (deferredDeletes.isEmpty()) {
+            return;
+        }
+        long stamp = structureLock.readLock();
+        try {
+            drainDeferredDeletes();
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    // caller holds the read lock. the count drops only after the node is marked, so searches keep
+    // filtering it until the graph excludes it by itself
+    private void drainDeferredDeletes() {
+        Integer nodeId;
+        while ((nodeId = deferredDeletes.poll()) != null) {
+            markDeleted(nodeId);
+            unmarkedDeletes.decrementAndGet();
+        }
+    }
 
-        if (softDeleteCount.get() > 5000) {
-            cleanup();
+    private void cleanupIfNeeded() {
+        if (compactionPolicy == null && softDeleteCount.get() > 5000) {
+            long stamp = structureLock.writeLock();
+            try {
+                // another writer may have cleaned up while this one waited for the lock
+                if (softDeleteCount.get() > 5000) {
+                    removeDeletedNodes();
+                }
+            } finally {
+                structureLock.unlockWrite(stamp);
+            }
+            applyDeferredDeletes();
         }
     }
 
     /**
      * Cleanup deleted nodes - blocking compaction operation.
      * Call periodically when delete percentage gets too high.
+     * Waits for in-flight inserts and deletes and holds new inserts back until it is done,
+     * deletes arriving meanwhile are deferred instead.
      */
     public long cleanup() {
+        requireMutable();
+        return compact();
+    }
+
+    private long compact() {
+        long freedMemory;
+        long stamp = structureLock.writeLock();
+        try {
+            freedMemory = removeDeletedNodes();
+        } finally {
+            structureLock.unlockWrite(stamp);
+        }
+        applyDeferredDeletes();
+        return freedMemory;
+    }
+
+    private void startCompactor() {
+        lastCompactionNanos = System.nanoTime();
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "jvector-compaction");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(this::compactIfDue, COMPACTION_CHECK_MILLIS, COMPACTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void compactIfDue() {
+        int deleted = softDeleteCount.get();
+        long now = System.nanoTime();
+        if (deleted == 0 || now - lastCompactionNanos < TimeUnit.MILLISECONDS.toNanos(compactionPolicy.minIntervalMillis())) {
+            return;
+        }
+        boolean overThreshold = deleted >= compactionPolicy.deletedFraction() * (deleted + liveNodeCount.get());
+        boolean idle = compactionPolicy.idleMillis() > 0
+                && now - lastWriteNanos >= TimeUnit.MILLISECONDS.toNanos(compactionPolicy.idleMillis());
+        if (overThreshold || idle) {
+            try {
+                compact();
+            } catch (RuntimeException e) {
+                // keep the schedule alive, an exception would cancel it
+                System.err.println("Background compaction failed: " + e);
+            }
+        }
+    }
+
+    private long removeDeletedNodes() {
         if (softDeleteCount.get() == 0) {
             System.out.println("No deleted nodes to cleanup");
             return 0;
         }
 
-        long startTime = System.currentTimeMillis();
+        long start = System.nanoTime();
         long freedMemory = builder.removeDeletedNodes();
-
+        // no edge leads to the removed nodes anymore and searches overlapping this are retried,
+        // so their data can go and their ids can be handed out again
+        int freedNodes = 0;
+        Integer nodeId;
+        while ((nodeId = removableNodes.poll()) != null) {
+            ids.set(nodeId, null);
+            jvectorVectors.set(nodeId, null);
+            freeNodeIds.add(nodeId);
+            freedNodes++;
+        }
+        freedMemory += (long) freedNodes * dimension * Float.BYTES;
+        long elapsed = System.nanoTime() - start;
+        graphVersion.incrementAndGet();
         softDeleteCount.set(0);
-        liveNodeCount.set(builder.getGraph().size(0));
 
+        compactions++;
+        compactionNanos += elapsed;
+        maxCompactionNanos = Math.max(maxCompactionNanos, elapsed);
+        lastCompactionDurationNanos = elapsed;
+        freedBytes += freedMemory;
+        lastCompactionNanos = System.nanoTime();
         return freedMemory;
     }
+
+    public CompactionMetrics getCompactionMetrics() {
+        return new CompactionMetrics(compactions, TimeUnit.NANOSECONDS.toMillis(compactionNanos),
+                TimeUnit.NANOSECONDS.toMillis(maxCompactionNanos), TimeUnit.NANOSECONDS.toMillis(lastCompactionDurationNanos), freedBytes);
+    }
 }
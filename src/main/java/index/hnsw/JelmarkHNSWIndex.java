@@ -4,7 +4,8 @@ import benchmark.BenchmarkExecutors;
 import com.github.jelmerk.hnswlib.core.DistanceFunction;
 import com.github.jelmerk.hnswlib.core.SearchResult;
 import com.github.jelmerk.hnswlib.core.hnsw.HnswIndex;
-import core.DistanceMetric;
+import core.DistanceCounter;
+import core.Metric;
 import core.QueryResult;
 import core.Vector;
 import core.VectorIndex;
@@ -12,8 +13,10 @@ import core.VectorIndex;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -22,24 +25,31 @@ public class JelmarkHNSWIndex implements VectorIndex {
     private final int efConstruction;
     private final int efSearch;
     private HnswIndex<String, float[], Vector, Float> index;
-    private long distanceCalculations = 0;
+    private final DistanceCounter distanceCalculations = new DistanceCounter();
+    private final Metric metric;
     private final DistanceFunction<float[], Float> distanceFunction;
     private final AtomicLong versionCounter = new AtomicLong(0);
     private final ExecutorService insertExecutor;
 
-    // constructor with executor service
-    public JelmarkHNSWIndex(int m, int efConstruction, int efSearch, ExecutorService insertExecutor) {
+    // constructor with executor service and metric
+    public JelmarkHNSWIndex(int m, int efConstruction, int efSearch, ExecutorService insertExecutor, Metric metric) {
         this.m = m;
         this.efConstruction = efConstruction;
         this.efSearch = efSearch;
         this.insertExecutor = insertExecutor;
+        this.metric = metric;
 
+        // the graph only compares distances, so it runs on ranking scores (squared L2 for L2)
         this.distanceFunction = (vector1, vector2) -> {
-            distanceCalculations++;
-            return new DistanceMetric().euclideanDistance(vector1, vector2);
+            distanceCalculations.increment();
+            return metric.score(vector1, vector2, 0);
         };
     }
 
+    public JelmarkHNSWIndex(int m, int efConstruction, int efSearch, ExecutorService insertExecutor) {
+        this(m, efConstruction, efSearch, insertExecutor, Metric.L2);
+    }
+
     public JelmarkHNSWIndex(int m, int efConstruction, int efSearch) {
         this(m, efConstruction, efSearch, null);
     }
@@ -77,7 +87,7 @@ public class JelmarkHNSWIndex implements VectorIndex {
     }
 
     @Override
-    public List<QueryResult> search(float[] query, int k, String dataset) {
+    public List<QueryResult> search(float[] query, int k) {
 
         Vector queryVector = new Vector("query", query);
         List<SearchResult<Vector, Float>> results =
@@ -85,20 +95,31 @@ public class JelmarkHNSWIndex implements VectorIndex {
 
         List<QueryResult> searchResults = new ArrayList<>();
         for (SearchResult<Vector, Float> result : results) {
-            searchResults.add(new QueryResult(result.item().id(), result.distance()));
+            searchResults.add(new QueryResult(result.item().id(), metric.toDistance(result.distance())));
         }
 
         return searchResults;
     }
 
+    // graph search has no data to share between queries, so a batch just fans out over the executor
+    @Override
+    public List<List<QueryResult>> searchBatch(float[][] queries, int k) {
+        Executor executor = insertExecutor != null ? insertExecutor : ForkJoinPool.commonPool();
+        List<CompletableFuture<List<QueryResult>>> futures = new ArrayList<>(queries.length);
+        for (float[] query : queries) {
+            futures.add(CompletableFuture.supplyAsync(() -> search(query, k), executor));
+        }
+        return futures.stream().map(CompletableFuture::join).toList();
+    }
+
     @Override
     public long getDistanceCalculations() {
-        return distanceCalculations;
+        return distanceCalculations.get();
     }
 
     @Override
     public void resetDistanceCalculations() {
-        this.distanceCalculations = 0;
+        distanceCalculations.reset();
     }
 
     @Override
@@ -106,6 +127,11 @@ public class JelmarkHNSWIndex implements VectorIndex {
         return "JelMark-HNSW";
     }
 
+    @Override
+    public Metric getMetric() {
+        return metric;
+    }
+
     @Override
     public void insert(Vector vector) {
         long version = versionCounter.incrementAndGet();
@@ -141,7 +167,7 @@ public class JelmarkHNSWIndex implements VectorIndex {
     }
 
     @Override
-    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
+    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k) {
         return null;
     }
 }
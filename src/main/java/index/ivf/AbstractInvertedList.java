@@ -0,0 +1,90 @@
+package index.ivf;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// what every cluster list shares whatever it stores per entry (floats in InvertedList, byte codes in
+// CodeInvertedList): a parallel int id array in append order, capacity that grows geometrically, and
+// deletes that only set a tombstone bit until compact() squeezes the dead positions out.
+// subclasses keep the payload and grow and move it along with the ids
+abstract class AbstractInvertedList {
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] ids;
+    private int size;
+    private final BitSet tombstones = new BitSet();
+    private int deleted;
+
+    AbstractInvertedList(int initialCapacity) {
+        this.ids = new int[Math.max(MIN_CAPACITY, initialCapacity)];
+        this.size = 0;
+    }
+
+    // entries the payload must have room for
+    int capacity() {
+        return ids.length;
+    }
+
+    // take the next position for id, the caller writes its payload there
+    int appendId(int id) {
+        if (size == ids.length) {
+            int capacity = Math.max(size + 1, ids.length + (ids.length >> 1));
+            ids = Arrays.copyOf(ids, capacity);
+            growPayload(capacity);
+        }
+        ids[size] = id;
+        return size++;
+    }
+
+    // positions in use, including tombstoned ones
+    int size() {
+        return size;
+    }
+
+    int deletedCount() {
+        return deleted;
+    }
+
+    boolean isDeleted(int position) {
+        return tombstones.get(position);
+    }
+
+    void markDeleted(int position) {
+        if (!tombstones.get(position)) {
+            tombstones.set(position);
+            deleted++;
+        }
+    }
+
+    // move live entries down over the tombstoned ones, keeping their order
+    void compact() {
+        int write = 0;
+        for (int read = 0; read < size; read++) {
+            if (tombstones.get(read)) {
+                continue;
+            }
+            if (write != read) {
+                movePayload(read, write);
+                ids[write] = ids[read];
+            }
+            write++;
+        }
+        size = write;
+        tombstones.clear();
+        deleted = 0;
+    }
+
+    int id(int position) {
+        return ids[position];
+    }
+
+    long allocatedBytes() {
+        return 16L + 4L * ids.length + payloadBytes();
+    }
+
+    abstract void growPayload(int capacity);
+
+    abstract void movePayload(int from, int to);
+
+    abstract long payloadBytes();
+}
@@ -0,0 +1,29 @@
+package index.ivf;
+
+import core.Vector;
+
+import java.util.List;
+
+// picks the lists a query probes. IVFIndex builds it once from the trained centroids and only reads
+// it afterwards, so implementations must allow concurrent searches. ranking is by squared L2 to the
+// centroid whatever the index metric, the same distance k-means assigned the vectors with
+public interface CoarseQuantizer {
+    void build(List<Vector> centroids);
+
+    // ids of the (up to) nProbe nearest centroids, nearest first
+    int[] nearest(float[] query, int nProbe);
+
+    default int[][] nearestBatch(float[][] queries, int nProbe) {
+        int[][] result = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++) {
+            result[q] = nearest(queries[q], nProbe);
+        }
+        return result;
+    }
+
+    long getDistanceCalculations();
+
+    void resetDistanceCalculations();
+
+    String getName();
+}
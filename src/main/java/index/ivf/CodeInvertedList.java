@@ -0,0 +1,40 @@
+package index.ivf;
+
+import java.util.Arrays;
+
+// one cluster of byte codes (PQ codes for IVF-PQ, SQ8 codes for IVF in SQ8 mode) packed back to back
+// next to the id array
+class CodeInvertedList extends AbstractInvertedList {
+    private final int codeSize;
+    private byte[] codes;
+
+    CodeInvertedList(int codeSize, int initialCapacity) {
+        super(initialCapacity);
+        this.codeSize = codeSize;
+        this.codes = new byte[capacity() * codeSize];
+    }
+
+    // reserve room for one more vector, returns the offset its codes must be written at
+    int append(int id) {
+        return appendId(id) * codeSize;
+    }
+
+    byte[] codes() {
+        return codes;
+    }
+
+    @Override
+    void growPayload(int capacity) {
+        codes = Arrays.copyOf(codes, capacity * codeSize);
+    }
+
+    @Override
+    void movePayload(int from, int to) {
+        System.arraycopy(codes, from * codeSize, codes, to * codeSize, codeSize);
+    }
+
+    @Override
+    long payloadBytes() {
+        return 16L + codes.length;
+    }
+}
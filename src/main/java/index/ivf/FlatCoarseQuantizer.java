@@ -0,0 +1,106 @@
+package index.ivf;
+
+import core.DistanceCounter;
+import core.DistanceMetric;
+import core.TopKSelector;
+import core.Vector;
+
+import java.util.List;
+
+// exact coarse search. ||q - c||^2 = ||q||^2 - 2 q.c + ||c||^2 and ||q||^2 is the same for every
+// centroid, so the ranking only needs ||c||^2 (precomputed) minus twice a dot product. the dots are
+// taken four centroids at a time so each slice of the query is loaded once per four centroids.
+// batches are tiled like a GEMM: a block of centroids stays in cache while a tile of queries runs over it
+public class FlatCoarseQuantizer implements CoarseQuantizer {
+    private static final int CENTROID_BLOCK = 128;
+    private static final int QUERY_TILE = 64;
+
+    private int nList;
+    private int dimension;
+    // centroids back to back, padded with zero vectors to a multiple of 4 so the kernel never needs a tail
+    private float[] centroidBlock;
+    private float[] norms;
+    private final DistanceCounter distanceCalculations = new DistanceCounter();
+
+    @Override
+    public void build(List<Vector> centroids) {
+        nList = centroids.size();
+        dimension = centroids.get(0).dimensions();
+        int padded = (nList + 3) & ~3;
+        centroidBlock = new float[padded * dimension];
+        norms = new float[nList];
+        for (int c = 0; c < nList; c++) {
+            float[] centroid = centroids.get(c).vector();
+            System.arraycopy(centroid, 0, centroidBlock, c * dimension, dimension);
+            norms[c] = DistanceMetric.dotProduct(centroid, centroid);
+        }
+    }
+
+    @Override
+    public int[] nearest(float[] query, int nProbe) {
+        TopKSelector topK = new TopKSelector(Math.min(nProbe, nList));
+        scoreRange(query, 0, nList, topK, new float[4]);
+        distanceCalculations.add(nList);
+        return toIds(topK);
+    }
+
+    @Override
+    public int[][] nearestBatch(float[][] queries, int nProbe) {
+        TopKSelector[] topK = new TopKSelector[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            topK[q] = new TopKSelector(Math.min(nProbe, nList));
+        }
+        float[] dots = new float[4];
+        for (int tileStart = 0; tileStart < queries.length; tileStart += QUERY_TILE) {
+            int tileEnd = Math.min(queries.length, tileStart + QUERY_TILE);
+            for (int blockStart = 0; blockStart < nList; blockStart += CENTROID_BLOCK) {
+                int blockEnd = Math.min(nList, blockStart + CENTROID_BLOCK);
+                for (int q = tileStart; q < tileEnd; q++) {
+                    scoreRange(queries[q], blockStart, blockEnd, topK[q], dots);
+                }
+            }
+        }
+        distanceCalculations.add((long) nList * queries.length);
+
+        int[][] result = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++) {
+            result[q] = toIds(topK[q]);
+        }
+        return result;
+    }
+
+    // from is a multiple of 4, the padding centroids past nList are scored but never offered
+    private void scoreRange(float[] query, int from, int to, TopKSelector topK, float[] dots) {
+        for (int c = from; c < to; c += 4) {
+            DistanceMetric.dotProduct4(query, centroidBlock, c * dimension, dots);
+            int n = Math.min(4, to - c);
+            for (int j = 0; j < n; j++) {
+                topK.offer(c + j, norms[c + j] - 2 * dots[j]);
+            }
+        }
+    }
+
+    private static int[] toIds(TopKSelector topK) {
+        int n = topK.sort();
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = topK.slot(i);
+        }
+        return ids;
+    }
+
+    @Override
+    public long getDistanceCalculations() {
+        return distanceCalculations.get();
+    }
+
+    @Override
+    public void resetDistanceCalculations() {
+        distanceCalculations.reset();
+    }
+
+    @Override
+    public String getName() {
+        return "flat";
+    }
+}
@@ -0,0 +1,76 @@
+package index.ivf;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+import com.github.jelmerk.hnswlib.core.SearchResult;
+import com.github.jelmerk.hnswlib.core.hnsw.HnswIndex;
+import core.DistanceCounter;
+import core.DistanceMetric;
+import core.Vector;
+
+import java.util.List;
+
+// IVF-HNSW style coarse search: a small HNSW graph over the centroids, so finding the probed lists
+// costs roughly log(nList) * m distances instead of nList. approximate, a query can miss one of its
+// true nearest lists, efSearch trades that off (it is raised to nProbe when smaller)
+public class HnswCoarseQuantizer implements CoarseQuantizer {
+    private final int m;
+    private final int efConstruction;
+    private final int efSearch;
+    private HnswIndex<String, float[], Vector, Float> graph;
+    private final DistanceCounter distanceCalculations = new DistanceCounter();
+
+    public HnswCoarseQuantizer(int m, int efConstruction, int efSearch) {
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+    }
+
+    public HnswCoarseQuantizer() {
+        this(16, 200, 64);
+    }
+
+    @Override
+    public void build(List<Vector> centroids) {
+        DistanceFunction<float[], Float> distanceFunction = (a, b) -> {
+            distanceCalculations.increment();
+            return DistanceMetric.squaredEuclideanDistance(a, b, 0);
+        };
+        graph = HnswIndex
+                .newBuilder(centroids.get(0).dimensions(), distanceFunction, centroids.size())
+                .withM(m)
+                .withEfConstruction(efConstruction)
+                .withEf(efSearch)
+                .build();
+        // graph items are keyed by the centroid's list id so a result maps straight back to a list
+        for (int c = 0; c < centroids.size(); c++) {
+            graph.add(new Vector(String.valueOf(c), centroids.get(c).vector()));
+        }
+        // construction distances are a build cost, not part of the per query count
+        distanceCalculations.reset();
+    }
+
+    @Override
+    public int[] nearest(float[] query, int nProbe) {
+        List<SearchResult<Vector, Float>> results = graph.findNearest(query, nProbe);
+        int[] ids = new int[results.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Integer.parseInt(results.get(i).item().id());
+        }
+        return ids;
+    }
+
+    @Override
+    public long getDistanceCalculations() {
+        return distanceCalculations.get();
+    }
+
+    @Override
+    public void resetDistanceCalculations() {
+        distanceCalculations.reset();
+    }
+
+    @Override
+    public String getName() {
+        return "hnsw (m=" + m + ", ef=" + efSearch + ")";
+    }
+}
@@ -1,25 +1,178 @@
 package index.ivf;
 
+import benchmark.ClusterSizeMetrics;
 import core.*;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class IVFIndex implements VectorIndex {
     private final int nList;
     private final int nProbe;
+    private final Metric metric;
 
     private KMeans kMeans;
-    private List<List<Vector>> invertedLists;
-    private long distanceCalculations = 0;
+    // finds the lists to probe, exact by default, see withCoarseQuantizer
+    private CoarseQuantizer coarseQuantizer = new FlatCoarseQuantizer();
+    private List<InvertedList> invertedLists;
+    // lists store int ordinals, the string id is only resolved for the final k results
+    private OrdinalTable<String> idByOrdinal;
+    private final DistanceCounter distanceCalculations = new DistanceCounter();
 
-    public IVFIndex(int nList, int nProbe) {
+    // batch search: queries are grouped by probed list and each list is streamed in blocks
+    // of DATA_BLOCK vectors, every block is reused by up to QUERY_TILE queries while it is cache resident
+    private static final int DATA_BLOCK = 256;
+    private static final int QUERY_TILE = 64;
+
+    // optional SQ8 tier: lists hold one byte per dimension instead of floats, the best k * rerankFactor
+    // candidates are re-scored against the caller's float arrays (only kept when re-ranking)
+    private boolean scalarQuantized;
+    private int rerankFactor;
+    private ScalarQuantizer quantizer;
+    private List<CodeInvertedList> codeLists;
+    private OrdinalTable<float[]> originals;
+
+    // updates: id -> (cluster << 32 | position) per copy (one unless spilling, in ascending cluster order),
+    // so a delete is a map lookup and a tombstone bit per copy. every cluster has its own lock, scans take
+    // the read side and inserts, deletes and compaction the write side, so writers to different clusters
+    // never wait on each other. an element of the array is only written under its cluster's write lock
+    private ConcurrentHashMap<String, long[]> locations;
+    private ReentrantReadWriteLock[] clusterLocks;
+    // writers of the same id (insert's delete-then-add, delete) are serialized on the id's stripe, so an
+    // upsert is atomic per id and two racing upserts can't both append a copy. taken before any cluster lock
+    private static final int ID_LOCK_STRIPES = 64;
+    private final Object[] idLocks = new Object[ID_LOCK_STRIPES];
+
+    // a list is compacted in place once a quarter of its positions (and at least 64) are tombstones,
+    // which keeps the amortized cost of a delete constant
+    private static final int COMPACTION_MIN_DELETED = 64;
+    private static final double COMPACTION_RATIO = 0.25;
+
+    // intra-query parallelism: the probed clusters are dealt round-robin to up to `parallelism`
+    // tasks on scanPool, each keeps its own top-k and the partials are merged.
+    // below MIN_PARALLEL_SCAN expected vectors per query the fork/join overhead isn't worth it
+    private static final int MIN_PARALLEL_SCAN = 4096;
+    private final int parallelism;
+    private final ForkJoinPool scanPool;
+    // runs searchAsync and insertAsync work, null means searchAsync completes on the caller thread
+    private final ExecutorService executor;
+
+    // k-means is trained on a random sample of this many vectors (0 = all of them),
+    // followed by one parallel assignment pass over the full dataset
+    private int trainingSampleSize;
+    private double quantizationError;
+
+    // size-constrained assignment: no list gets more than maxClusterSizeFactor times the average
+    // at build time (0 = plain nearest-centroid assignment). inserts are not capped
+    private double maxClusterSizeFactor;
+
+    // spilling: a vector is stored in up to maxAssignments lists, its nearest one plus any whose centroid
+    // is within spillRatio of that distance. every copy shares one ordinal, searches over-fetch
+    // maxAssignments times the candidates and drop repeated ordinals
+    private int maxAssignments = 1;
+    private double spillRatio;
+
+    public IVFIndex(int nList, int nProbe, Metric metric, int parallelism, ExecutorService executor) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
         this.nList = nList;
         this.nProbe = nProbe;
+        this.metric = metric;
+        this.parallelism = parallelism;
+        this.scanPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        this.executor = executor;
+        for (int i = 0; i < ID_LOCK_STRIPES; i++) {
+            idLocks[i] = new Object();
+        }
+    }
+
+    public IVFIndex(int nList, int nProbe, Metric metric, int parallelism) {
+        this(nList, nProbe, metric, parallelism, null);
+    }
+
+    public IVFIndex(int nList, int nProbe, Metric metric) {
+        this(nList, nProbe, metric, 1);
+    }
+
+    public IVFIndex(int nList, int nProbe) {
+        this(nList, nProbe, Metric.L2);
+    }
+
+    // store SQ8 codes instead of floats, rerankFactor 0 returns the approximate ranking as is.
+    // must be called before build, the quantizer ranges are trained on the build vectors
+    public IVFIndex withScalarQuantization(int rerankFactor) {
+        if (kMeans != null) {
+            throw new IllegalStateException("Scalar quantization must be enabled before build");
+        }
+        if (rerankFactor < 0) {
+            throw new IllegalArgumentException("rerankFactor must not be negative");
+        }
+        this.scalarQuantized = true;
+        this.rerankFactor = rerankFactor;
+        return this;
     }
+
+    // train the coarse quantizer on sampleSize random vectors instead of the full dataset.
+    // a few hundred points per list is usually enough, see IVFMain for the recall trade-off
+    public IVFIndex withTrainingSample(int sampleSize) {
+        if (sampleSize < 0) {
+            throw new IllegalArgumentException("sampleSize must not be negative");
+        }
+        this.trainingSampleSize = sampleSize;
+        return this;
+    }
+
+    // cap every list at maxClusterSizeFactor * (vectors / nList) at build time, vectors that don't fit
+    // go to their next nearest centroid with room. bounds the worst probe on skewed data at the cost of
+    // a slightly higher quantization error. must be at least 1, called before build
+    public IVFIndex withBalancedClusters(double maxClusterSizeFactor) {
+        if (kMeans != null) {
+            throw new IllegalStateException("Balanced clusters must be enabled before build");
+        }
+        if (maxClusterSizeFactor < 1.0) {
+            throw new IllegalArgumentException("maxClusterSizeFactor must be at least 1");
+        }
+        this.maxClusterSizeFactor = maxClusterSizeFactor;
+        return this;
+    }
+
+    // store boundary vectors in several lists so they are found at a lower nProbe, at up to maxAssignments
+    // times the list memory. a vector joins a further list only if its centroid is at most distanceRatio
+    // times as far as the nearest one (e.g. 1.1). must be called before build
+    public IVFIndex withSpilling(int maxAssignments, double distanceRatio) {
+        if (kMeans != null) {
+            throw new IllegalStateException("Spilling must be enabled before build");
+        }
+        if (maxAssignments < 1) {
+            throw new IllegalArgumentException("maxAssignments must be at least 1");
+        }
+        if (distanceRatio < 1.0) {
+            throw new IllegalArgumentException("distanceRatio must be at least 1");
+        }
+        this.maxAssignments = maxAssignments;
+        this.spillRatio = distanceRatio;
+        return this;
+    }
+
+    // replace the exact coarse search, e.g. with an HnswCoarseQuantizer once nList runs into the
+    // tens of thousands and scoring every centroid costs more than the list scans. must be called before build
+    public IVFIndex withCoarseQuantizer(CoarseQuantizer coarseQuantizer) {
+        if (kMeans != null) {
+            throw new IllegalStateException("The coarse quantizer must be set before build");
+        }
+        this.coarseQuantizer = coarseQuantizer;
+        return this;
+    }
+
     @Override
     public void build(List<Vector> vectors) {
         System.out.println("Building IVF index with nList = " + nList + " and nProbe = " + nProbe);
@@ -28,19 +181,57 @@ public class IVFIndex implements VectorIndex {
         long startTime = System.currentTimeMillis();
         // run k-means clustering
         kMeans = new KMeans(nList, 20);
-        kMeans.fit(vectors);
-
-        // initialize inverted lists
-        invertedLists = new ArrayList<>();
-        for (int i = 0; i < nList; i++) {
-            invertedLists.add(new ArrayList<>());
-        }
+        kMeans.fit(vectors, trainingSampleSize);
+        coarseQuantizer.build(kMeans.getCentroids());
 
         // assign each vector to its nearest cluster
         System.out.println("Populating inverted lists...");
-        for (Vector v : vectors) {
-            int clusterId = kMeans.findNearestCentroid(v.vector());
-            invertedLists.get(clusterId).add(v);
+        int[] assignments = new int[vectors.size()];
+        if (maxClusterSizeFactor > 0) {
+            int maxClusterSize = (int) Math.ceil(maxClusterSizeFactor * vectors.size() / nList);
+            quantizationError = kMeans.assignBalanced(vectors, assignments, maxClusterSize);
+        } else {
+            quantizationError = kMeans.assign(vectors, assignments);
+        }
+        int[][] clusterSets = new int[vectors.size()][];
+        if (maxAssignments > 1) {
+            clusterSets = kMeans.assignSpill(vectors, assignments, maxAssignments, spillRatio);
+        } else {
+            for (int i = 0; i < vectors.size(); i++) {
+                clusterSets[i] = new int[]{assignments[i]};
+            }
+        }
+        int[] clusterSizes = new int[nList];
+        for (int[] clusterSet : clusterSets) {
+            for (int clusterId : clusterSet) {
+                clusterSizes[clusterId]++;
+            }
+        }
+
+        clusterLocks = new ReentrantReadWriteLock[nList];
+        for (int c = 0; c < nList; c++) {
+            clusterLocks[c] = new ReentrantReadWriteLock();
+        }
+        locations = new ConcurrentHashMap<>(vectors.size() * 4 / 3 + 1);
+
+        // size every list up front so the build never regrows a block
+        int dimension = vectors.get(0).dimensions();
+        idByOrdinal = new OrdinalTable<>(vectors.size());
+        if (scalarQuantized) {
+            quantizer = ScalarQuantizer.train(vectors);
+            codeLists = new ArrayList<>(nList);
+            for (int c = 0; c < nList; c++) {
+                codeLists.add(new CodeInvertedList(dimension, clusterSizes[c]));
+            }
+            originals = rerankFactor > 0 ? new OrdinalTable<>(vectors.size()) : null;
+        } else {
+            invertedLists = new ArrayList<>(nList);
+            for (int c = 0; c < nList; c++) {
+                invertedLists.add(new InvertedList(dimension, clusterSizes[c]));
+            }
+        }
+        for (int i = 0; i < vectors.size(); i++) {
+            add(vectors.get(i), clusterSets[i]);
         }
 
         // print cluster stats
@@ -49,95 +240,536 @@ public class IVFIndex implements VectorIndex {
         System.out.printf("IVF index built in %.2fs\n", totalTime/1000.0);
     }
 
+    // give the vector an ordinal and append it to the list of every cluster in clusterIds (ascending)
+    private void add(Vector vector, int[] clusterIds) {
+        int ordinal = idByOrdinal.append(vector.id());
+        if (originals != null) {
+            originals.set(ordinal, vector.vector());
+        }
+        long[] vectorLocations = new long[clusterIds.length];
+        lockClusters(clusterIds);
+        try {
+            for (int j = 0; j < clusterIds.length; j++) {
+                int clusterId = clusterIds[j];
+                int position;
+                if (quantizer != null) {
+                    CodeInvertedList list = codeLists.get(clusterId);
+                    int offset = list.append(ordinal);
+                    quantizer.encode(vector.vector(), list.codes(), offset);
+                    position = list.size() - 1;
+                } else {
+                    position = invertedLists.get(clusterId).add(ordinal, vector.vector());
+                }
+                vectorLocations[j] = location(clusterId, position);
+            }
+            locations.put(vector.id(), vectorLocations);
+        } finally {
+            unlockClusters(clusterIds);
+        }
+    }
+
+    // writers take all of a vector's cluster locks in ascending order, so overlapping sets can't deadlock
+    private void lockClusters(int[] clusterIds) {
+        for (int clusterId : clusterIds) {
+            clusterLocks[clusterId].writeLock().lock();
+        }
+    }
+
+    private void unlockClusters(int[] clusterIds) {
+        for (int j = clusterIds.length - 1; j >= 0; j--) {
+            clusterLocks[clusterIds[j]].writeLock().unlock();
+        }
+    }
+
+    private static long location(int clusterId, int position) {
+        return ((long) clusterId << 32) | position;
+    }
+
+    private static int clusterOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int positionOf(long location) {
+        return (int) location;
+    }
+
     @Override
     public int size() {
-        int total = 0;
-        for (List<Vector> list : invertedLists) {
-            total += list.size();
+        return locations == null ? 0 : locations.size();
+    }
+
+    // the cluster's list whichever kind this index stores, for everything but the scans
+    private AbstractInvertedList list(int clusterId) {
+        return quantizer != null ? codeLists.get(clusterId) : invertedLists.get(clusterId);
+    }
+
+    // SQ8 scans keep k * rerankFactor candidates for the re-rank, everything else keeps k.
+    // with spilling an ordinal can take up to maxAssignments slots, so the pool grows by that factor
+    // to still hold the same number of distinct vectors
+    private int candidateCount(int k) {
+        return (quantizer != null && rerankFactor > 0 ? k * rerankFactor : k) * maxAssignments;
+    }
+
+    // re-scores SQ8 candidates against the original floats when re-ranking is on
+    private List<QueryResult> toResults(float[] query, TopKSelector candidates, int k) {
+        if (originals == null) {
+            return resolve(candidates, k);
+        }
+        TopKSelector topK = new TopKSelector(k);
+        Set<Integer> seen = maxAssignments > 1 ? new HashSet<>() : null;
+        int n = candidates.size();
+        int scored = 0;
+        for (int i = 0; i < n; i++) {
+            int ordinal = candidates.slot(i);
+            if (seen != null && !seen.add(ordinal)) {
+                continue;
+            }
+            float[] original = originals.get(ordinal);
+            // compacted away after this query scanned its list
+            if (original != null) {
+                topK.offer(ordinal, metric.score(query, original, 0));
+                scored++;
+            }
         }
-        return total;
+        distanceCalculations.add(scored);
+        return resolve(topK, k);
+    }
+
+    // ids are resolved after the list locks are released, so an entry compacted away in between is skipped.
+    // spilled copies of one vector score the same, only the first is kept
+    private List<QueryResult> resolve(TopKSelector topK, int k) {
+        int n = topK.sort();
+        Set<Integer> seen = maxAssignments > 1 ? new HashSet<>() : null;
+        List<QueryResult> results = new ArrayList<>(Math.min(n, k));
+        for (int i = 0; i < n && results.size() < k; i++) {
+            int ordinal = topK.slot(i);
+            if (seen != null && !seen.add(ordinal)) {
+                continue;
+            }
+            String id = idByOrdinal.get(ordinal);
+            if (id != null) {
+                results.add(new QueryResult(id, metric.toDistance(topK.distance(i))));
+            }
+        }
+        return results;
     }
 
     @Override
-    public List<QueryResult> search(float[] query, int k, String dataset) {
+    public List<QueryResult> search(float[] query, int k) {
 
         // find nProbe nearest centroids (coarse search)
-        List<Integer> nearestCluster = kMeans.findNearestCentroids(query,nProbe);
-        distanceCalculations+=nList;
+        int[] nearestCluster = coarseQuantizer.nearest(query, nProbe);
 
-        // collect all candidates from selected clusters
-        List<QueryResult> candidates = new ArrayList<>();
-        for (int clusterId : nearestCluster) {
-            List<Vector> vectorsInCluster = invertedLists.get(clusterId);
-            // brute force
-            for (Vector v : vectorsInCluster) {
-                float distance = new DistanceMetric().euclideanDistance(query, v.vector());
-                candidates.add(new QueryResult(v.id(),distance));
-                distanceCalculations++;
+        // keep the k best candidates from selected clusters
+        int candidates = candidateCount(k);
+        ScalarQuantizer.Scorer scorer = quantizer == null ? null : quantizer.scorer(query, metric);
+        int partitions = Math.min(parallelism, nearestCluster.length);
+        long expectedScan = (long) size() * nearestCluster.length / nList;
+        if (scanPool == null || partitions <= 1 || expectedScan < MIN_PARALLEL_SCAN) {
+            TopKSelector topK = new TopKSelector(candidates);
+            long scanned = 0;
+            for (int clusterId : nearestCluster) {
+                scanned += scanCluster(clusterId, query, scorer, topK);
             }
+            distanceCalculations.add(scanned);
+            return toResults(query, topK, k);
         }
-        // sort candidates by distance and return top k
-        Collections.sort(candidates);
 
-        int returnSize = Math.min(k, candidates.size());
-        return candidates.subList(0,returnSize);
+        // each task writes only its own slot of scanned, join() makes the counts visible here
+        long[] scanned = new long[partitions];
+        List<ForkJoinTask<TopKSelector>> tasks = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            int partition = p;
+            tasks.add(scanPool.submit(() -> {
+                TopKSelector partial = new TopKSelector(candidates);
+                for (int i = partition; i < nearestCluster.length; i += partitions) {
+                    scanned[partition] += scanCluster(nearestCluster[i], query, scorer, partial);
+                }
+                return partial;
+            }));
+        }
+        TopKSelector topK = new TopKSelector(candidates);
+        for (int p = 0; p < partitions; p++) {
+            topK.merge(tasks.get(p).join());
+            distanceCalculations.add(scanned[p]);
+        }
+        return toResults(query, topK, k);
+    }
+
+    // scan one list under its read lock, returns the number of entries scored (tombstones are skipped)
+    private int scanCluster(int clusterId, float[] query, ScalarQuantizer.Scorer scorer, TopKSelector topK) {
+        ReentrantReadWriteLock.ReadLock lock = clusterLocks[clusterId].readLock();
+        lock.lock();
+        try {
+            return scorer != null
+                    ? scanCodes(codeLists.get(clusterId), scorer, topK)
+                    : scanVectors(invertedLists.get(clusterId), query, topK);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // brute force, sequential sweep over the cluster's block
+    private int scanVectors(InvertedList list, float[] query, TopKSelector topK) {
+        float[] block = list.vectors();
+        int dimension = list.dimension();
+        boolean tombstoned = list.deletedCount() > 0;
+        for (int i = 0, offset = 0; i < list.size(); i++, offset += dimension) {
+            if (tombstoned && list.isDeleted(i)) {
+                continue;
+            }
+            topK.offer(list.id(i), metric.score(query, block, offset));
+        }
+        return list.size() - list.deletedCount();
+    }
+
+    private int scanCodes(CodeInvertedList list, ScalarQuantizer.Scorer scorer, TopKSelector topK) {
+        byte[] codes = list.codes();
+        int dimension = quantizer.dimension();
+        boolean tombstoned = list.deletedCount() > 0;
+        for (int i = 0, offset = 0; i < list.size(); i++, offset += dimension) {
+            if (tombstoned && list.isDeleted(i)) {
+                continue;
+            }
+            topK.offer(list.id(i), scorer.score(codes, offset));
+        }
+        return list.size() - list.deletedCount();
+    }
+
+    @Override
+    public List<List<QueryResult>> searchBatch(float[][] queries, int k) {
+        // coarse search per query, then invert it into the queries that probe each list
+        List<List<Integer>> queriesByList = new ArrayList<>(nList);
+        for (int c = 0; c < nList; c++) {
+            queriesByList.add(new ArrayList<>());
+        }
+        int[][] nearestClusters = coarseQuantizer.nearestBatch(queries, nProbe);
+        for (int q = 0; q < queries.length; q++) {
+            for (int clusterId : nearestClusters[q]) {
+                queriesByList.get(clusterId).add(q);
+            }
+        }
+
+        TopKSelector[] topK = new TopKSelector[queries.length];
+        ScalarQuantizer.Scorer[] scorers = quantizer == null ? null : new ScalarQuantizer.Scorer[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            topK[q] = new TopKSelector(candidateCount(k));
+            if (scorers != null) {
+                scorers[q] = quantizer.scorer(queries[q], metric);
+            }
+        }
+        for (int clusterId = 0; clusterId < nList; clusterId++) {
+            List<Integer> probing = queriesByList.get(clusterId);
+            if (probing.isEmpty()) {
+                continue;
+            }
+            ReentrantReadWriteLock.ReadLock lock = clusterLocks[clusterId].readLock();
+            lock.lock();
+            try {
+                if (scorers != null) {
+                    scanCodeList(codeLists.get(clusterId), probing, scorers, topK);
+                } else {
+                    scanVectorList(invertedLists.get(clusterId), probing, queries, topK);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<List<QueryResult>> results = new ArrayList<>(queries.length);
+        for (int q = 0; q < queries.length; q++) {
+            results.add(toResults(queries[q], topK[q], k));
+        }
+        return results;
+    }
+
+    private void scanVectorList(InvertedList list, List<Integer> probing, float[][] queries, TopKSelector[] topK) {
+        if (list.size() == 0) {
+            return;
+        }
+        float[] block = list.vectors();
+        int dimension = list.dimension();
+        boolean tombstoned = list.deletedCount() > 0;
+        for (int tileStart = 0; tileStart < probing.size(); tileStart += QUERY_TILE) {
+            int tileEnd = Math.min(probing.size(), tileStart + QUERY_TILE);
+            for (int blockStart = 0; blockStart < list.size(); blockStart += DATA_BLOCK) {
+                int blockEnd = Math.min(list.size(), blockStart + DATA_BLOCK);
+                for (int t = tileStart; t < tileEnd; t++) {
+                    int q = probing.get(t);
+                    float[] query = queries[q];
+                    TopKSelector queryTopK = topK[q];
+                    for (int i = blockStart, offset = blockStart * dimension; i < blockEnd; i++, offset += dimension) {
+                        if (tombstoned && list.isDeleted(i)) {
+                            continue;
+                        }
+                        queryTopK.offer(list.id(i), metric.score(query, block, offset));
+                    }
+                }
+            }
+        }
+        distanceCalculations.add((long) probing.size() * (list.size() - list.deletedCount()));
+    }
+
+    // SQ8 counterpart of scanVectorList
+    private void scanCodeList(CodeInvertedList list, List<Integer> probing, ScalarQuantizer.Scorer[] scorers, TopKSelector[] topK) {
+        if (list.size() == 0) {
+            return;
+        }
+        byte[] codes = list.codes();
+        int dimension = quantizer.dimension();
+        boolean tombstoned = list.deletedCount() > 0;
+        for (int tileStart = 0; tileStart < probing.size(); tileStart += QUERY_TILE) {
+            int tileEnd = Math.min(probing.size(), tileStart + QUERY_TILE);
+            for (int blockStart = 0; blockStart < list.size(); blockStart += DATA_BLOCK) {
+                int blockEnd = Math.min(list.size(), blockStart + DATA_BLOCK);
+                for (int t = tileStart; t < tileEnd; t++) {
+                    int q = probing.get(t);
+                    ScalarQuantizer.Scorer scorer = scorers[q];
+                    TopKSelector queryTopK = topK[q];
+                    for (int i = blockStart, offset = blockStart * dimension; i < blockEnd; i++, offset += dimension) {
+                        if (tombstoned && list.isDeleted(i)) {
+                            continue;
+                        }
+                        queryTopK.offer(list.id(i), scorer.score(codes, offset));
+                    }
+                }
+            }
+        }
+        distanceCalculations.add((long) probing.size() * (list.size() - list.deletedCount()));
     }
 
     @Override
     public long getDistanceCalculations() {
-        return distanceCalculations;
+        return distanceCalculations.get() + coarseQuantizer.getDistanceCalculations();
     }
 
     @Override
     public void resetDistanceCalculations() {
-        distanceCalculations = 0;
+        distanceCalculations.reset();
+        coarseQuantizer.resetDistanceCalculations();
     }
 
     @Override
     public String getName() {
-        return "IVF Index";
+        String name = "IVF Index";
+        if (scalarQuantized) {
+            name = rerankFactor > 0 ? "IVF SQ8 (rerank x" + rerankFactor + ")" : "IVF SQ8";
+        }
+        if (maxClusterSizeFactor > 0) {
+            name += String.format(" [max %.1fx avg list]", maxClusterSizeFactor);
+        }
+        if (!(coarseQuantizer instanceof FlatCoarseQuantizer)) {
+            name += " [" + coarseQuantizer.getName() + " coarse]";
+        }
+        return parallelism > 1 ? name + " (" + parallelism + " threads)" : name;
+    }
+
+    @Override
+    public Metric getMetric() {
+        return metric;
     }
 
+    // assigns the vector to the centroid the coarse quantizer picks, so an insert lands where searches
+    // will look for it. the centroids themselves are not retrained, an id that is already indexed is replaced
     @Override
     public void insert(Vector vector) {
+        if (kMeans == null) {
+            throw new IllegalStateException("IVF index must be built before inserting");
+        }
+        int dimension = kMeans.getCentroids().get(0).dimensions();
+        if (vector.dimensions() != dimension) {
+            throw new IllegalArgumentException("Expected dimension " + dimension + " but got " + vector.dimensions());
+        }
+        int[] clusterIds = insertClusters(vector.vector());
+        synchronized (idLock(vector.id())) {
+            deleteLocked(vector.id());
+            add(vector, clusterIds);
+        }
+    }
+
+    private Object idLock(String vectorId) {
+        return idLocks[(vectorId.hashCode() & 0x7fffffff) % ID_LOCK_STRIPES];
+    }
 
+    private int[] insertClusters(float[] vector) {
+        if (maxAssignments == 1) {
+            return new int[]{coarseQuantizer.nearest(vector, 1)[0]};
+        }
+        int[] nearest = coarseQuantizer.nearest(vector, maxAssignments);
+        return kMeans.spillClusters(vector, nearest[0], nearest, maxAssignments, spillRatio);
     }
 
     @Override
     public void delete(String vectorId) {
+        if (locations == null) {
+            return;
+        }
+        synchronized (idLock(vectorId)) {
+            deleteLocked(vectorId);
+        }
+    }
+
+    // caller holds the id's stripe lock
+    private void deleteLocked(String vectorId) {
+        long[] vectorLocations = locations.get(vectorId);
+        if (vectorLocations == null) {
+            return;
+        }
+        // an entry never changes cluster, but compaction may move it within a list, so positions are
+        // only read once every cluster it lives in is locked
+        int[] clusterIds = new int[vectorLocations.length];
+        for (int j = 0; j < clusterIds.length; j++) {
+            clusterIds[j] = clusterOf(vectorLocations[j]);
+        }
+        lockClusters(clusterIds);
+        try {
+            // deleted or replaced while waiting for the locks
+            if (locations.get(vectorId) != vectorLocations) {
+                return;
+            }
+            locations.remove(vectorId);
+            for (int j = 0; j < clusterIds.length; j++) {
+                int clusterId = clusterIds[j];
+                AbstractInvertedList list = list(clusterId);
+                list.markDeleted(positionOf(vectorLocations[j]));
+                int deleted = list.deletedCount();
+                if (deleted >= COMPACTION_MIN_DELETED && deleted >= COMPACTION_RATIO * list.size()) {
+                    compact(clusterId);
+                }
+            }
+        } finally {
+            unlockClusters(clusterIds);
+        }
+    }
 
+    // caller holds the cluster's write lock. relocate() moves an id's copy in this cluster to wherever the
+    // entry ends up, which is only right if every surviving entry is the one its id's location points at,
+    // so an entry that isn't is dropped along with the tombstones
+    private void compact(int clusterId) {
+        AbstractInvertedList list = list(clusterId);
+        for (int i = 0; i < list.size(); i++) {
+            if (list.isDeleted(i)) {
+                clearOrdinal(list.id(i));
+            } else if (!ownsSlot(list.id(i), clusterId, i)) {
+                // copies of the orphan in other clusters may still be scanned, so its ordinal stays
+                list.markDeleted(i);
+            }
+        }
+        list.compact();
+        for (int i = 0; i < list.size(); i++) {
+            relocate(list.id(i), clusterId, i);
+        }
     }
 
+    // whether the ordinal's id is still located at this slot, caller holds the cluster's write lock
+    private boolean ownsSlot(int ordinal, int clusterId, int position) {
+        String id = idByOrdinal.get(ordinal);
+        long[] vectorLocations = id == null ? null : locations.get(id);
+        if (vectorLocations == null) {
+            return false;
+        }
+        for (long vectorLocation : vectorLocations) {
+            if (vectorLocation == location(clusterId, position)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // point the ordinal's copy in clusterId at its new position, caller holds that cluster's write lock.
+    // compact() only keeps entries its id's location points at, so the copy found here is this entry
+    private void relocate(int ordinal, int clusterId, int position) {
+        String id = idByOrdinal.get(ordinal);
+        long[] vectorLocations = id == null ? null : locations.get(id);
+        if (vectorLocations == null) {
+            return;
+        }
+        for (int j = 0; j < vectorLocations.length; j++) {
+            if (clusterOf(vectorLocations[j]) == clusterId) {
+                vectorLocations[j] = location(clusterId, position);
+                return;
+            }
+        }
+    }
+
+    private void clearOrdinal(int ordinal) {
+        idByOrdinal.clear(ordinal);
+        if (originals != null) {
+            originals.clear(ordinal);
+        }
+    }
+
+    // inserts run in parallel, they only contend when they land in the same cluster
     @Override
     public void insertAsync(List<Vector> vectors) {
+        if (executor == null) {
+            vectors.parallelStream().forEach(this::insert);
+            return;
+        }
+        List<CompletableFuture<Void>> futures = vectors.stream()
+                .map(v -> CompletableFuture.runAsync(() -> insert(v), executor))
+                .toList();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
 
+    // the executor only runs the outer query, intra-query tasks go to scanPool, so a saturated
+    // executor can't deadlock waiting on its own scan tasks
+    @Override
+    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k) {
+        if (executor == null) {
+            return CompletableFuture.completedFuture(search(query, k));
+        }
+        return CompletableFuture.supplyAsync(() -> search(query, k), executor);
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    // stops the intra-query scan pool, the executor belongs to the caller and is left running
     @Override
-    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
-        return null;
+    public void close() {
+        if (scanPool != null) {
+            scanPool.shutdown();
+        }
     }
 
-    private void printClusterStatistics() {
-        int minSize = Integer.MAX_VALUE;
-        int maxSize = 0;
-        int emptyCount = 0;
+    // mean squared distance from each build vector to its centroid, lower means tighter lists
+    public double getQuantizationError() {
+        return quantizationError;
+    }
 
-        for (List<Vector> list : invertedLists) {
-            int size = list.size();
-            if (size == 0) {
-                emptyCount++;
+    // live (non-deleted) entries per list
+    public int[] getClusterSizes() {
+        if (clusterLocks == null) {
+            throw new IllegalStateException("IVF index must be built before reading cluster sizes");
+        }
+        int[] sizes = new int[nList];
+        for (int c = 0; c < nList; c++) {
+            ReentrantReadWriteLock.ReadLock lock = clusterLocks[c].readLock();
+            lock.lock();
+            try {
+                sizes[c] = list(c).size() - list(c).deletedCount();
+            } finally {
+                lock.unlock();
             }
-            minSize = Math.min(minSize,size);
-            maxSize = Math.max(maxSize,size);
         }
+        return sizes;
+    }
+
+    public ClusterSizeMetrics getClusterSizeMetrics() {
+        return new ClusterSizeMetrics(getClusterSizes());
+    }
 
-        double avgSize = (double) size() / nList;
+    private void printClusterStatistics() {
+        long allocatedBytes = quantizer == null ? 0 : quantizer.allocatedBytes();
+        for (int c = 0; c < nList; c++) {
+            allocatedBytes += list(c).allocatedBytes();
+        }
 
         System.out.println("Cluster statistics");
-        System.out.printf(" Average cluster size: %.1f\n", avgSize);
-        System.out.printf(" Min cluster size: %d\n", minSize);
-        System.out.printf(" Max cluster size: %d\n", maxSize);
-        System.out.printf(" Empty clusters: %d / %d\n", emptyCount, nList);
+        System.out.println(getClusterSizeMetrics().toString().indent(1).stripTrailing());
+        System.out.printf(" Quantization error: %.4f\n", quantizationError);
+        System.out.printf(" List storage: %.1f bytes/vector\n", (double) allocatedBytes / Math.max(1, size()));
     }
 }
@@ -0,0 +1,388 @@
+package index.ivf;
+
+import core.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// IVF with product-quantized residuals: each vector is stored as m code bytes of (vector - coarse centroid).
+// search scores codes through per-query lookup tables (asymmetric distance), optionally re-ranking the
+// best k * rerankFactor candidates against the full vectors.
+// COSINE is approximated by inner product during the code scan, which assumes unit-length vectors.
+public class IVFPQIndex implements VectorIndex {
+    // PQ codebooks are trained on a random sample, 256 codewords need far fewer points than the dataset
+    private static final int PQ_TRAINING_SAMPLE = 25_000;
+    private static final int PQ_ITERATIONS = 15;
+
+    private final int nList;
+    private final int nProbe;
+    private final int subspaces;
+    private final int rerankFactor;
+    private final Metric metric;
+
+    private KMeans kMeans;
+    private ProductQuantizer pq;
+    private List<CodeInvertedList> invertedLists;
+    private OrdinalTable<String> idByOrdinal;
+    // only kept when re-ranking is enabled, these are the caller's arrays, not copies
+    private OrdinalTable<float[]> originals;
+    private final DistanceCounter distanceCalculations = new DistanceCounter();
+
+    // updates work like IVFIndex without spilling: id -> (cluster << 32 | position), deletes are tombstones,
+    // scans take their cluster's read lock and inserts, deletes and compaction the write lock
+    private ConcurrentHashMap<String, Long> locations;
+    private ReentrantReadWriteLock[] clusterLocks;
+    // serializes the delete-then-add of an upsert with other writers of the same id, taken before a cluster lock
+    private static final int ID_LOCK_STRIPES = 64;
+    private final Object[] idLocks = new Object[ID_LOCK_STRIPES];
+
+    // estimated heap of one locations entry with compressed oops: a 32 byte map node and a 16 byte boxed Long.
+    // the id string itself is the caller's and shared with idByOrdinal
+    private static final int LOCATION_ENTRY_BYTES = 48;
+
+    private static final int COMPACTION_MIN_DELETED = 64;
+    private static final double COMPACTION_RATIO = 0.25;
+
+    public IVFPQIndex(int nList, int nProbe, int subspaces, int rerankFactor, Metric metric) {
+        this.nList = nList;
+        this.nProbe = nProbe;
+        this.subspaces = subspaces;
+        this.rerankFactor = rerankFactor;
+        this.metric = metric;
+        for (int i = 0; i < ID_LOCK_STRIPES; i++) {
+            idLocks[i] = new Object();
+        }
+    }
+
+    public IVFPQIndex(int nList, int nProbe, int subspaces, int rerankFactor) {
+        this(nList, nProbe, subspaces, rerankFactor, Metric.L2);
+    }
+
+    @Override
+    public void build(List<Vector> vectors) {
+        System.out.println("Building IVF-PQ index with nList = " + nList + ", nProbe = " + nProbe
+                + ", m = " + subspaces + ", rerankFactor = " + rerankFactor);
+        System.out.println("Dataset size: " + vectors.size() + " vectors");
+
+        long startTime = System.currentTimeMillis();
+        // coarse quantizer
+        kMeans = new KMeans(nList, 20);
+        kMeans.fit(vectors);
+
+        int[] assignments = new int[vectors.size()];
+        kMeans.assign(vectors, assignments);
+        int[] clusterSizes = new int[nList];
+        for (int clusterId : assignments) {
+            clusterSizes[clusterId]++;
+        }
+
+        // train the codebooks on residuals of a random sample, drawn without replacement
+        int dimension = vectors.get(0).dimensions();
+        pq = new ProductQuantizer(dimension, subspaces);
+        int sampleSize = Math.min(PQ_TRAINING_SAMPLE, vectors.size());
+        int[] sample = sampleSize == vectors.size() ? null : KMeans.sampleIndices(vectors.size(), sampleSize, new Random(42));
+        List<float[]> residuals = new ArrayList<>(sampleSize);
+        for (int i = 0; i < sampleSize; i++) {
+            int pick = sample == null ? i : sample[i];
+            residuals.add(residual(vectors.get(pick).vector(), assignments[pick]));
+        }
+        System.out.println("Training PQ codebooks on " + sampleSize + " residuals...");
+        pq.train(residuals, PQ_ITERATIONS);
+
+        // encode everything
+        System.out.println("Encoding inverted lists...");
+        invertedLists = new ArrayList<>(nList);
+        clusterLocks = new ReentrantReadWriteLock[nList];
+        for (int c = 0; c < nList; c++) {
+            invertedLists.add(new CodeInvertedList(subspaces, clusterSizes[c]));
+            clusterLocks[c] = new ReentrantReadWriteLock();
+        }
+        idByOrdinal = new OrdinalTable<>(vectors.size());
+        originals = rerankFactor > 0 ? new OrdinalTable<>(vectors.size()) : null;
+        locations = new ConcurrentHashMap<>(vectors.size() * 4 / 3 + 1);
+        for (int i = 0; i < vectors.size(); i++) {
+            add(vectors.get(i), assignments[i]);
+        }
+
+        printStatistics();
+        long totalTime = System.currentTimeMillis() - startTime;
+        System.out.printf("IVF-PQ index built in %.2fs\n", totalTime/1000.0);
+    }
+
+    // codes are computed before taking the lock, only the copy into the list happens under it
+    private void add(Vector vector, int clusterId) {
+        byte[] code = new byte[subspaces];
+        pq.encode(residual(vector.vector(), clusterId), code, 0);
+        int ordinal = idByOrdinal.append(vector.id());
+        if (originals != null) {
+            originals.set(ordinal, vector.vector());
+        }
+        ReentrantReadWriteLock.WriteLock lock = clusterLocks[clusterId].writeLock();
+        lock.lock();
+        try {
+            CodeInvertedList list = invertedLists.get(clusterId);
+            int offset = list.append(ordinal);
+            System.arraycopy(code, 0, list.codes(), offset, subspaces);
+            locations.put(vector.id(), location(clusterId, list.size() - 1));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long location(int clusterId, int position) {
+        return ((long) clusterId << 32) | position;
+    }
+
+    private static int clusterOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int positionOf(long location) {
+        return (int) location;
+    }
+
+    private float[] residual(float[] vector, int clusterId) {
+        float[] centroid = kMeans.getCentroids().get(clusterId).vector();
+        float[] residual = new float[vector.length];
+        for (int d = 0; d < vector.length; d++) {
+            residual[d] = vector[d] - centroid[d];
+        }
+        return residual;
+    }
+
+    @Override
+    public int size() {
+        return locations == null ? 0 : locations.size();
+    }
+
+    @Override
+    public List<QueryResult> search(float[] query, int k) {
+        List<Integer> nearestCluster = kMeans.findNearestCentroids(query, nProbe);
+        distanceCalculations.add(nList);
+
+        boolean rerank = rerankFactor > 0;
+        TopKSelector candidates = new TopKSelector(rerank ? k * rerankFactor : k);
+        float[] table = new float[pq.tableSize()];
+        boolean l2 = metric == Metric.L2 || metric == Metric.L2_SQUARED;
+        if (!l2) {
+            // dot(q, centroid + residual) = dot(q, centroid) + dot(q, residual), one table serves every list
+            pq.dotProductTable(query, table);
+        }
+
+        for (int clusterId : nearestCluster) {
+            float base;
+            if (l2) {
+                // ||q - (c + r)||^2 = ||(q - c) - r||^2, the table is built on the query residual
+                pq.squaredDistanceTable(residual(query, clusterId), table);
+                base = 0;
+            } else {
+                base = 1.0f - DistanceMetric.dotProduct(query, kMeans.getCentroids().get(clusterId).vector());
+            }
+            ReentrantReadWriteLock.ReadLock lock = clusterLocks[clusterId].readLock();
+            lock.lock();
+            try {
+                CodeInvertedList list = invertedLists.get(clusterId);
+                byte[] codes = list.codes();
+                for (int i = 0, offset = 0; i < list.size(); i++, offset += subspaces) {
+                    if (list.isDeleted(i)) {
+                        continue;
+                    }
+                    float approximate = pq.lookup(table, codes, offset);
+                    candidates.offer(list.id(i), l2 ? approximate : base - approximate);
+                }
+                distanceCalculations.add(list.size() - list.deletedCount());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (!rerank) {
+            return resolve(candidates, k);
+        }
+
+        // exact re-rank of the shortlist against the full vectors
+        TopKSelector topK = new TopKSelector(k);
+        int n = candidates.size();
+        int scored = 0;
+        for (int i = 0; i < n; i++) {
+            int ordinal = candidates.slot(i);
+            float[] original = originals.get(ordinal);
+            // compacted away after this query scanned its list
+            if (original != null) {
+                topK.offer(ordinal, metric.score(query, original, 0));
+                scored++;
+            }
+        }
+        distanceCalculations.add(scored);
+        return resolve(topK, k);
+    }
+
+    // ids are resolved after the list locks are released, so an entry compacted away in between is skipped
+    private List<QueryResult> resolve(TopKSelector topK, int k) {
+        int n = topK.sort();
+        List<QueryResult> results = new ArrayList<>(Math.min(n, k));
+        for (int i = 0; i < n && results.size() < k; i++) {
+            String id = idByOrdinal.get(topK.slot(i));
+            if (id != null) {
+                results.add(new QueryResult(id, metric.toDistance(topK.distance(i))));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<List<QueryResult>> searchBatch(float[][] queries, int k) {
+        // lookup tables are per query and per list, there is no block to share between queries
+        List<List<QueryResult>> results = new ArrayList<>(queries.length);
+        for (float[] query : queries) {
+            results.add(search(query, k));
+        }
+        return results;
+    }
+
+    @Override
+    public long getDistanceCalculations() {
+        return distanceCalculations.get();
+    }
+
+    @Override
+    public void resetDistanceCalculations() {
+        distanceCalculations.reset();
+    }
+
+    @Override
+    public String getName() {
+        return rerankFactor > 0 ? "IVF-PQ" + subspaces + " (rerank x" + rerankFactor + ")" : "IVF-PQ" + subspaces;
+    }
+
+    @Override
+    public Metric getMetric() {
+        return metric;
+    }
+
+    // an insert of an existing id replaces it, the delete and the add happen under the id's stripe lock
+    @Override
+    public void insert(Vector vector) {
+        if (locations == null) {
+            throw new IllegalStateException("IVF-PQ index must be built before inserting");
+        }
+        if (vector.dimensions() != pq.dimension()) {
+            throw new IllegalArgumentException("Expected dimension " + pq.dimension() + " but got " + vector.dimensions());
+        }
+        int clusterId = kMeans.findNearestCentroid(vector.vector());
+        synchronized (idLock(vector.id())) {
+            deleteLocked(vector.id());
+            add(vector, clusterId);
+        }
+    }
+
+    private Object idLock(String vectorId) {
+        return idLocks[(vectorId.hashCode() & 0x7fffffff) % ID_LOCK_STRIPES];
+    }
+
+    @Override
+    public void delete(String vectorId) {
+        if (locations == null) {
+            return;
+        }
+        synchronized (idLock(vectorId)) {
+            deleteLocked(vectorId);
+        }
+    }
+
+    // caller holds the id's stripe lock, so the id can't change cluster. compaction may still move it
+    // within its list, the position is only read once that list is locked
+    private void deleteLocked(String vectorId) {
+        Long vectorLocation = locations.get(vectorId);
+        if (vectorLocation == null) {
+            return;
+        }
+        int clusterId = clusterOf(vectorLocation);
+        ReentrantReadWriteLock.WriteLock lock = clusterLocks[clusterId].writeLock();
+        lock.lock();
+        try {
+            vectorLocation = locations.remove(vectorId);
+            CodeInvertedList list = invertedLists.get(clusterId);
+            list.markDeleted(positionOf(vectorLocation));
+            int deleted = list.deletedCount();
+            if (deleted >= COMPACTION_MIN_DELETED && deleted >= COMPACTION_RATIO * list.size()) {
+                compact(clusterId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // caller holds the cluster's write lock
+    private void compact(int clusterId) {
+        CodeInvertedList list = invertedLists.get(clusterId);
+        for (int i = 0; i < list.size(); i++) {
+            if (list.isDeleted(i)) {
+                idByOrdinal.clear(list.id(i));
+                if (originals != null) {
+                    originals.clear(list.id(i));
+                }
+            }
+        }
+        list.compact();
+        for (int i = 0; i < list.size(); i++) {
+            String id = idByOrdinal.get(list.id(i));
+            if (id != null) {
+                locations.replace(id, location(clusterId, i));
+            }
+        }
+    }
+
+    // inserts only contend when they land in the same cluster
+    @Override
+    public void insertAsync(List<Vector> vectors) {
+        vectors.parallelStream().forEach(this::insert);
+    }
+
+    @Override
+    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k) {
+        return CompletableFuture.completedFuture(search(query, k));
+    }
+
+    // heap the index holds per vector: codes and list ids, the shared codebooks, the ordinal tables, the
+    // id -> location map (entries plus table slots) and, when re-ranking, the full vectors it keeps alive
+    public double bytesPerVector() {
+        int size = size();
+        long bytes = pq.codebookBytes() + idByOrdinal.allocatedBytes();
+        bytes += (long) size * LOCATION_ENTRY_BYTES + 4L * Integer.highestOneBit(Math.max(1, size * 4 / 3) * 2 - 1);
+        if (originals != null) {
+            bytes += originals.allocatedBytes() + size * (16L + 4L * pq.dimension());
+        }
+        for (int c = 0; c < nList; c++) {
+            ReentrantReadWriteLock.ReadLock lock = clusterLocks[c].readLock();
+            lock.lock();
+            try {
+                bytes += invertedLists.get(c).allocatedBytes();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return size == 0 ? 0 : (double) bytes / size;
+    }
+
+    private void printStatistics() {
+        int maxSize = 0;
+        int emptyCount = 0;
+        for (CodeInvertedList list : invertedLists) {
+            maxSize = Math.max(maxSize, list.size());
+            if (list.size() == 0) {
+                emptyCount++;
+            }
+        }
+        System.out.println("IVF-PQ statistics");
+        System.out.printf(" Average cluster size: %.1f\n", (double) size() / nList);
+        System.out.printf(" Max cluster size: %d\n", maxSize);
+        System.out.printf(" Empty clusters: %d / %d\n", emptyCount, nList);
+        System.out.printf(" Code size: %d bytes/vector (%.1f bytes/vector in total%s)\n", subspaces, bytesPerVector(),
+                originals != null ? ", including the full vectors kept for re-ranking" : "");
+    }
+}
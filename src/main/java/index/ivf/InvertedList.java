@@ -0,0 +1,47 @@
+package index.ivf;
+
+import java.util.Arrays;
+
+// one IVF cluster: vectors packed back to back in a single float block next to the id array,
+// so probing a cluster is a sequential sweep
+class InvertedList extends AbstractInvertedList {
+    private final int dimension;
+    private float[] vectors;
+
+    InvertedList(int dimension, int initialCapacity) {
+        super(initialCapacity);
+        this.dimension = dimension;
+        this.vectors = new float[capacity() * dimension];
+    }
+
+    // append a vector, returns its position in the list
+    int add(int id, float[] vector) {
+        int position = appendId(id);
+        System.arraycopy(vector, 0, vectors, position * dimension, dimension);
+        return position;
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    // raw block, the vector at position i starts at i * dimension
+    float[] vectors() {
+        return vectors;
+    }
+
+    @Override
+    void growPayload(int capacity) {
+        vectors = Arrays.copyOf(vectors, capacity * dimension);
+    }
+
+    @Override
+    void movePayload(int from, int to) {
+        System.arraycopy(vectors, from * dimension, vectors, to * dimension, dimension);
+    }
+
+    @Override
+    long payloadBytes() {
+        return 16L + 4L * vectors.length;
+    }
+}
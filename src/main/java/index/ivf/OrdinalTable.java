@@ -0,0 +1,65 @@
+package index.ivf;
+
+import java.util.Arrays;
+
+// append-only ordinal -> value table shared by concurrent inserts and searches.
+// values live in fixed size pages that never move once allocated, so get() needs no lock:
+// an ordinal is only ever learned through an inverted list or map that was updated after the value
+// was written, which is enough for the reader to see it.
+class OrdinalTable<T> {
+    private static final int PAGE_SHIFT = 14;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private volatile Object[][] pages;
+    private int size;
+
+    OrdinalTable(int expectedSize) {
+        this.pages = new Object[Math.max(1, (expectedSize + PAGE_MASK) >>> PAGE_SHIFT)][];
+    }
+
+    // store value under the next ordinal and return it
+    synchronized int append(T value) {
+        int ordinal = size;
+        set(ordinal, value);
+        return ordinal;
+    }
+
+    // store value under an ordinal handed out by another table, so side tables stay aligned
+    synchronized void set(int ordinal, T value) {
+        int page = ordinal >>> PAGE_SHIFT;
+        Object[][] current = pages;
+        if (page >= current.length) {
+            current = Arrays.copyOf(current, Math.max(page + 1, current.length * 2));
+        }
+        if (current[page] == null) {
+            current[page] = new Object[PAGE_SIZE];
+        }
+        current[page][ordinal & PAGE_MASK] = value;
+        // republish so readers that see the new ordinal also see the page it lives in
+        pages = current;
+        size = Math.max(size, ordinal + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int ordinal) {
+        return (T) pages[ordinal >>> PAGE_SHIFT][ordinal & PAGE_MASK];
+    }
+
+    // the page directory and the pages, at 4 bytes per reference (compressed oops). the values are not included
+    long allocatedBytes() {
+        Object[][] current = pages;
+        long bytes = 16L + 4L * current.length;
+        for (Object[] page : current) {
+            if (page != null) {
+                bytes += 16L + 4L * PAGE_SIZE;
+            }
+        }
+        return bytes;
+    }
+
+    // drop the value of a removed entry so it can be collected, the ordinal itself is never reused
+    void clear(int ordinal) {
+        pages[ordinal >>> PAGE_SHIFT][ordinal & PAGE_MASK] = null;
+    }
+}
@@ -0,0 +1,127 @@
+package index.ivf;
+
+import core.DistanceMetric;
+import core.KMeans;
+import core.Vector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// splits a vector into m sub-vectors and replaces each one with the id of its nearest
+// codeword (256 per subspace), so a vector is stored as m bytes.
+// codebooks are trained with core.KMeans, one run per subspace.
+class ProductQuantizer {
+    static final int CODEBOOK_SIZE = 256;
+
+    private final int dimension;
+    private final int subspaces;
+    private final int subDimension;
+    private int codewords;
+    // codebooks[j] holds the codewords of subspace j back to back, codewords * subDimension floats
+    private final float[][] codebooks;
+
+    ProductQuantizer(int dimension, int subspaces) {
+        if (dimension % subspaces != 0) {
+            throw new IllegalArgumentException("Dimension " + dimension + " is not divisible into " + subspaces + " subspaces");
+        }
+        this.dimension = dimension;
+        this.subspaces = subspaces;
+        this.subDimension = dimension / subspaces;
+        this.codebooks = new float[subspaces][];
+    }
+
+    void train(List<float[]> samples, int iterations) {
+        codewords = Math.min(CODEBOOK_SIZE, samples.size());
+        for (int j = 0; j < subspaces; j++) {
+            List<Vector> subVectors = new ArrayList<>(samples.size());
+            for (int i = 0; i < samples.size(); i++) {
+                float[] sub = new float[subDimension];
+                System.arraycopy(samples.get(i), j * subDimension, sub, 0, subDimension);
+                subVectors.add(new Vector("sub_" + i, sub));
+            }
+            KMeans kMeans = new KMeans(codewords, iterations);
+            kMeans.fit(subVectors);
+
+            float[] codebook = new float[codewords * subDimension];
+            List<Vector> centroids = kMeans.getCentroids();
+            for (int c = 0; c < codewords; c++) {
+                System.arraycopy(centroids.get(c).vector(), 0, codebook, c * subDimension, subDimension);
+            }
+            codebooks[j] = codebook;
+        }
+    }
+
+    // write the m codes of vector into codes[offset, offset + m)
+    void encode(float[] vector, byte[] codes, int offset) {
+        float[] sub = new float[subDimension];
+        for (int j = 0; j < subspaces; j++) {
+            System.arraycopy(vector, j * subDimension, sub, 0, subDimension);
+            float[] codebook = codebooks[j];
+            int best = 0;
+            float bestDistance = Float.MAX_VALUE;
+            for (int c = 0; c < codewords; c++) {
+                float distance = DistanceMetric.squaredEuclideanDistance(sub, codebook, c * subDimension);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = c;
+                }
+            }
+            codes[offset + j] = (byte) best;
+        }
+    }
+
+    // asymmetric distance table: table[j * 256 + c] = squared L2 between the query's j-th sub-vector and codeword c
+    void squaredDistanceTable(float[] query, float[] table) {
+        float[] sub = new float[subDimension];
+        for (int j = 0; j < subspaces; j++) {
+            System.arraycopy(query, j * subDimension, sub, 0, subDimension);
+            float[] codebook = codebooks[j];
+            int base = j * CODEBOOK_SIZE;
+            for (int c = 0; c < codewords; c++) {
+                table[base + c] = DistanceMetric.squaredEuclideanDistance(sub, codebook, c * subDimension);
+            }
+        }
+    }
+
+    // same layout as above with dot products, for inner product style metrics
+    void dotProductTable(float[] query, float[] table) {
+        float[] sub = new float[subDimension];
+        for (int j = 0; j < subspaces; j++) {
+            System.arraycopy(query, j * subDimension, sub, 0, subDimension);
+            float[] codebook = codebooks[j];
+            int base = j * CODEBOOK_SIZE;
+            for (int c = 0; c < codewords; c++) {
+                table[base + c] = DistanceMetric.dotProduct(sub, codebook, c * subDimension);
+            }
+        }
+    }
+
+    // sum of table lookups for one encoded vector
+    float lookup(float[] table, byte[] codes, int offset) {
+        float sum = 0;
+        for (int j = 0, base = 0; j < subspaces; j++, base += CODEBOOK_SIZE) {
+            sum += table[base + (codes[offset + j] & 0xFF)];
+        }
+        return sum;
+    }
+
+    int subspaces() {
+        return subspaces;
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    int tableSize() {
+        return subspaces * CODEBOOK_SIZE;
+    }
+
+    long codebookBytes() {
+        long bytes = 0;
+        for (float[] codebook : codebooks) {
+            bytes += 16L + 4L * codebook.length;
+        }
+        return bytes;
+    }
+}